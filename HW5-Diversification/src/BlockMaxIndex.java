@@ -0,0 +1,354 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * BlockMaxIndex stores block-max metadata for the inverted lists of an
+ * index.  Each inverted list is divided into blocks of a fixed number
+ * of postings.  For each block it records the last docid, the largest
+ * tf, and the shortest field length, which bound the score of every
+ * document in the block.  Top-k evaluation uses the bounds to skip
+ * whole blocks (see {@link QryMaxScore}).
+ * <p>
+ * The metadata is written by the main method to a sidecar file in the
+ * index directory and loaded by {@link Idx#open}.  Only lists with at
+ * least one full block are stored; other lists compute their blocks
+ * from the InvList when they are needed.  The sidecar file records
+ * the version and generation of the index commit that it was written
+ * for, so a sidecar file that was written for a different version of
+ * the index, for example before the corpus was indexed again, is
+ * ignored.
+ * </p>
+ * <pre>
+ *   java BlockMaxIndex indexPath [blockSize]
+ * </pre>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   * The name of the sidecar file in the index directory.
+   */
+  public static final String FILE_NAME = "blockmax.bin";
+
+  /**
+   * The block size of blocks that aren't read from a sidecar file.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 128;
+
+  private static final int MAGIC = 0x424d4158;		// "BMAX"
+  private static final int VERSION = 2;
+
+  private int blockSize;
+  private HashMap<String, Blocks> lists = new HashMap<String, Blocks>();
+
+  /**
+   * The block-max metadata of one inverted list.  Block i holds the
+   * postings after lastDocids[i-1] through lastDocids[i].
+   */
+  public static class Blocks {
+
+    /** The last docid of each block. */
+    public final int[] lastDocids;
+
+    /** The largest tf in each block. */
+    public final int[] maxTfs;
+
+    /** The shortest field length in each block. */
+    public final int[] minFieldLengths;
+
+    /**
+     * @param lastDocids The last docid of each block.
+     * @param maxTfs The largest tf in each block.
+     * @param minFieldLengths The shortest field length in each block.
+     */
+    public Blocks(int[] lastDocids, int[] maxTfs, int[] minFieldLengths) {
+      this.lastDocids = lastDocids;
+      this.maxTfs = maxTfs;
+      this.minFieldLengths = minFieldLengths;
+    }
+
+    /**
+     * Compute the blocks of an inverted list.
+     * @param list The inverted list.
+     * @param blockSize The number of postings per block.
+     * @return The blocks of the list.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public static Blocks compute(InvList list, int blockSize) throws IOException {
+      int numBlocks = (list.df + blockSize - 1) / blockSize;
+      int ordinal = (list.field == null) ? -1 : Idx.getFieldOrdinal(list.field);
+      Blocks blocks = new Blocks(new int[numBlocks], new int[numBlocks], new int[numBlocks]);
+
+      for (int b = 0; b < numBlocks; b++) {
+        int end = Math.min(list.df, (b + 1) * blockSize);
+        int maxTf = 0;
+        int minLength = (ordinal < 0) ? 0 : Integer.MAX_VALUE;
+
+        for (int i = b * blockSize; i < end; i++) {
+          maxTf = Math.max(maxTf, list.tfs[i]);
+          if (ordinal >= 0) {
+            minLength = Math.min(minLength, Idx.getFieldLength(ordinal, list.docids[i]));
+          }
+        }
+
+        blocks.lastDocids[b] = list.docids[end - 1];
+        blocks.maxTfs[b] = maxTf;
+        blocks.minFieldLengths[b] = minLength;
+      }
+      return blocks;
+    }
+
+    /**
+     * Find the block that contains a docid, if the list has it.
+     * @param docid An internal document id.
+     * @param from A block to start searching from.  The search restarts
+     *   from the first block if docid precedes it.
+     * @return The index of the first block whose last docid is at least
+     *   docid, or the number of blocks if the docid is after the last one.
+     */
+    public int findBlock(int docid, int from) {
+      if (from > 0 && from <= this.lastDocids.length && this.lastDocids[from - 1] >= docid) {
+        from = 0;
+      }
+      return QryIop.gallop(this.lastDocids, Math.max(from, 0), this.lastDocids.length, docid);
+    }
+
+    /**
+     * @return The number of blocks.
+     */
+    public int size() {
+      return this.lastDocids.length;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   * Open the sidecar file of an index.
+   * @param indexPath A directory that contains a Lucene index.
+   * @param reader The index.
+   * @return The block-max metadata, or null if the index has no usable
+   *   sidecar file.
+   * @throws IOException Error reading the sidecar file.
+   */
+  public static BlockMaxIndex open(String indexPath, IndexReader reader) throws IOException {
+    File file = new File(indexPath, FILE_NAME);
+
+    if (!file.canRead()) {
+      return null;
+    }
+
+    DataInputStream input = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+
+    try {
+      if (input.readInt() != MAGIC) {
+        System.err.println("Warning: Ignoring " + file + ", it isn't a block-max file.");
+        return null;
+      }
+
+      if (input.readInt() != VERSION) {
+        System.err.println("Warning: Ignoring " + file + ", it was written by another version of BlockMaxIndex.");
+        return null;
+      }
+
+      BlockMaxIndex index = new BlockMaxIndex();
+      index.blockSize = input.readInt();
+      long indexVersion = input.readLong();
+      long indexGeneration = input.readLong();
+      int maxDoc = input.readInt();
+      int numDocs = input.readInt();
+
+      if (indexVersion != getIndexVersion(reader) ||
+          indexGeneration != getIndexGeneration(reader) ||
+          maxDoc != reader.maxDoc() || numDocs != reader.numDocs()) {
+        System.err.println("Warning: Ignoring " + file + ", it was written for a different version of the index.");
+        return null;
+      }
+
+      int numLists = input.readInt();
+
+      for (int l = 0; l < numLists; l++) {
+        String field = input.readUTF();
+        String term = input.readUTF();
+        int numBlocks = input.readInt();
+        Blocks blocks = new Blocks(new int[numBlocks], new int[numBlocks], new int[numBlocks]);
+
+        for (int b = 0; b < numBlocks; b++) {
+          blocks.lastDocids[b] = input.readInt();
+          blocks.maxTfs[b] = input.readInt();
+          blocks.minFieldLengths[b] = input.readInt();
+        }
+        index.lists.put(field + ":" + term, blocks);
+      }
+      return index;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Get the version of an index, which changes whenever the index is
+   * changed or created again.
+   * @param reader The index.
+   * @return The version, or -1 if the reader isn't a DirectoryReader.
+   */
+  private static long getIndexVersion(IndexReader reader) {
+    return (reader instanceof DirectoryReader) ? ((DirectoryReader) reader).getVersion() : -1;
+  }
+
+  /**
+   * Get the generation of the index commit that a reader opened.
+   * @param reader The index.
+   * @return The generation, or -1 if the reader isn't a DirectoryReader.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private static long getIndexGeneration(IndexReader reader) throws IOException {
+    return (reader instanceof DirectoryReader) ?
+      ((DirectoryReader) reader).getIndexCommit().getGeneration() : -1;
+  }
+
+  /**
+   * Get the blocks of an inverted list.
+   * @param fieldName The field name.
+   * @param term The processed (stemmed, lower-cased, etc) term string.
+   * @return The blocks, or null if the sidecar file doesn't have them.
+   */
+  public Blocks getBlocks(String fieldName, String term) {
+    return this.lists.get(fieldName + ":" + term);
+  }
+
+  /**
+   * @return The number of postings per block.
+   */
+  public int getBlockSize() {
+    return this.blockSize;
+  }
+
+  /**
+   * Write the sidecar file of an index.
+   * @param args The index path, and optionally the block size.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public static void main(String[] args) throws IOException {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java BlockMaxIndex indexPath [blockSize]");
+      System.exit(1);
+    }
+
+    String indexPath = args[0];
+    int blockSize = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Illegal argument: " + args[1] + ", blockSize is an integer > 0");
+    }
+
+    Idx.open(indexPath);
+    IndexReader reader = Idx.INDEXREADER;
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    //  The number of lists isn't known until the end, so the lists are
+    //  written to a temporary file first.
+    File tmp = File.createTempFile("blockmax", ".tmp");
+    DataOutputStream body = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmp)));
+    int numLists = 0;
+
+    int[] lastDocids = new int[16];
+    int[] maxTfs = new int[16];
+    int[] minFieldLengths = new int[16];
+
+    for (String field : MultiFields.getIndexedFields(reader)) {
+      Terms terms = MultiFields.getTerms(reader, field);
+      int ordinal = Idx.getFieldOrdinal(field);
+
+      //  Only fields with term frequencies and lengths are scored.
+      if (terms == null || !terms.hasPositions() || ordinal < 0 ||
+          MultiDocValues.getNormValues(reader, field) == null) {
+        continue;
+      }
+
+      TermsEnum termsEnum = terms.iterator(null);
+      DocsEnum docsEnum = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next()) != null) {
+        if (termsEnum.docFreq() < blockSize) {
+          continue;
+        }
+
+        docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_FREQS);
+        int numBlocks = 0;
+        int inBlock = 0;
+        int docid;
+
+        while ((docid = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          if (inBlock == 0) {
+            if (numBlocks == lastDocids.length) {
+              lastDocids = Arrays.copyOf(lastDocids, 2 * numBlocks);
+              maxTfs = Arrays.copyOf(maxTfs, 2 * numBlocks);
+              minFieldLengths = Arrays.copyOf(minFieldLengths, 2 * numBlocks);
+            }
+            maxTfs[numBlocks] = 0;
+            minFieldLengths[numBlocks] = Integer.MAX_VALUE;
+            numBlocks++;
+          }
+
+          int b = numBlocks - 1;
+          lastDocids[b] = docid;
+          maxTfs[b] = Math.max(maxTfs[b], docsEnum.freq());
+          minFieldLengths[b] = Math.min(minFieldLengths[b], Idx.getFieldLength(ordinal, docid));
+          inBlock = (inBlock + 1) % blockSize;
+        }
+
+        body.writeUTF(field);
+        body.writeUTF(term.utf8ToString());
+        body.writeInt(numBlocks);
+        for (int b = 0; b < numBlocks; b++) {
+          body.writeInt(lastDocids[b]);
+          body.writeInt(maxTfs[b]);
+          body.writeInt(minFieldLengths[b]);
+        }
+        numLists++;
+      }
+    }
+    body.close();
+
+    //  Write the header, then copy the lists.
+    File file = new File(indexPath, FILE_NAME);
+    DataOutputStream output = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file)));
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    output.writeInt(blockSize);
+    output.writeLong(getIndexVersion(reader));
+    output.writeLong(getIndexGeneration(reader));
+    output.writeInt(reader.maxDoc());
+    output.writeInt(reader.numDocs());
+    output.writeInt(numLists);
+
+    InputStream input = new BufferedInputStream(new FileInputStream(tmp));
+    byte[] buffer = new byte[1 << 16];
+    int n;
+
+    while ((n = input.read(buffer)) > 0) {
+      output.write(buffer, 0, n);
+    }
+    input.close();
+    output.close();
+    tmp.delete();
+
+    System.out.println("Wrote " + numLists + " inverted lists to " + file);
+  }
+}
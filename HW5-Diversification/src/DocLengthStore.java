@@ -12,20 +12,66 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Each indexed field has an ordinal.  Callers that look up many
+ * lengths can resolve a field to its ordinal once and then use
+ * {@link #getDocLength(int, int)}.  In memory mode the lengths of every
+ * field are copied into arrays when the store is created, so a lookup
+ * is an array access instead of a norms read.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
   private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private  Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+  //  Indexed by field ordinal.  lengths is null unless in memory mode,
+  //  and an entry is null if the field has no norms.
+  private NumericDocValues[] valuesByOrdinal;
+  private int[][] lengths = null;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    * @throws IOException Error accessing the Lucene index.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, false);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param inMemory Copy the lengths of every field into arrays.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public DocLengthStore(IndexReader reader, boolean inMemory) throws IOException {
     this.reader = reader;
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      this.values.put(field, MultiDocValues.getNormValues(reader, field));
+    }
+
+    this.valuesByOrdinal = new NumericDocValues[this.values.size()];
+    for (Map.Entry<String, NumericDocValues> entry : this.values.entrySet()) {
+      int ordinal = this.ordinals.size();
+      this.ordinals.put(entry.getKey(), ordinal);
+      this.valuesByOrdinal[ordinal] = entry.getValue();
+    }
+
+    if (inMemory) {
+      int maxDoc = reader.maxDoc();
+      this.lengths = new int[this.valuesByOrdinal.length][];
+
+      for (int ordinal = 0; ordinal < this.lengths.length; ordinal++) {
+        NumericDocValues norms = this.valuesByOrdinal[ordinal];
+
+        if (norms != null) {
+          int[] fieldLengths = new int[maxDoc];
+          for (int docid = 0; docid < maxDoc; docid++) {
+            fieldLengths[docid] = (int) norms.get(docid);
+          }
+          this.lengths[ordinal] = fieldLengths;
+        }
+      }
     }
   }
 
@@ -39,6 +85,37 @@ public class DocLengthStore  {
    * @throws IOException Error accessing the Lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
+    Integer ordinal = this.ordinals.get(fieldname);
+
+    if (this.lengths != null && ordinal != null && this.lengths[ordinal] != null) {
+      return this.lengths[ordinal][docid];
+    }
     return values.get(fieldname).get(docid);
   }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param ordinal The ordinal of the field, from {@link #getFieldOrdinal}.
+   * @param docid The internal docid in the lucene index.
+   * @return long The length of the field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public long getDocLength(int ordinal, int docid) throws IOException {
+    if (this.lengths != null && this.lengths[ordinal] != null) {
+      return this.lengths[ordinal][docid];
+    }
+    return this.valuesByOrdinal[ordinal].get(docid);
+  }
+
+  /**
+   * Returns the ordinal of an indexed field.
+   *
+   * @param fieldname Name of field.
+   * @return int The ordinal of the field, or -1 if the field isn't indexed.
+   */
+  public int getFieldOrdinal(String fieldname) {
+    Integer ordinal = this.ordinals.get(fieldname);
+    return (ordinal == null) ? -1 : ordinal;
+  }
 }
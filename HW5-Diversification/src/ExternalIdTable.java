@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * ExternalIdTable maps internal docids to external docids and back
+ * without reading stored documents or searching the index.  It is
+ * built once from the terms of the externalId field.
+ * <p>
+ * The external ids are kept outside of the Java heap in a byte pool
+ * of length-prefixed UTF-8 strings.  An offset table maps an internal
+ * docid to its string in the pool, and an open-addressing hash table
+ * (linear probing) maps an external id to its internal docid.  Both
+ * lookups take constant time.  Deleted documents are not in the table.
+ * If several documents share an external id, the lowest internal docid
+ * is returned, as a TermQuery would.
+ * </p>
+ */
+public class ExternalIdTable  {
+
+  private static final String FIELD = "externalId";
+
+  private ByteBuffer pool;		// length-prefixed UTF-8 external ids
+  private IntBuffer offsets;		// internal docid -> pool offset, or -1
+  private IntBuffer slots;		// hash slot -> internal docid + 1, or 0
+  private int mask;
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param terms The terms of the externalId field.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private ExternalIdTable(IndexReader reader, Terms terms) throws IOException {
+
+    int maxDoc = reader.maxDoc();
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    //  A first pass over the terms gives the size of the byte pool and
+    //  the hash table.  Each string has a two byte length prefix.
+    int numTerms = 0;
+    long sumBytes = 0;
+    TermsEnum termsEnum = terms.iterator(null);
+    BytesRef term;
+
+    while ((term = termsEnum.next()) != null) {
+      numTerms++;
+      sumBytes += 2 + term.length;
+    }
+
+    this.pool = ByteBuffer.allocateDirect((int) sumBytes);
+    this.offsets = ByteBuffer.allocateDirect(4 * maxDoc).asIntBuffer();
+    for (int i = 0; i < maxDoc; i++) {
+      this.offsets.put(i, -1);
+    }
+
+    int capacity = Integer.highestOneBit(Math.max(2, 2 * numTerms - 1)) << 1;
+    this.slots = ByteBuffer.allocateDirect(4 * capacity).asIntBuffer();
+    this.mask = capacity - 1;
+
+    //  Copy each external id to the pool once, and point each of its
+    //  documents at the copy.
+    termsEnum = terms.iterator(termsEnum);
+    DocsEnum docsEnum = null;
+
+    while ((term = termsEnum.next()) != null) {
+      docsEnum = termsEnum.docs(liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+      int first = docsEnum.nextDoc();
+
+      if (first == DocIdSetIterator.NO_MORE_DOCS) {
+        continue;				// Only deleted documents.
+      }
+
+      int offset = this.pool.position();
+      this.pool.putShort((short) term.length);
+      this.pool.put(term.bytes, term.offset, term.length);
+
+      for (int docid = first; docid != DocIdSetIterator.NO_MORE_DOCS;
+           docid = docsEnum.nextDoc()) {
+        this.offsets.put(docid, offset);
+      }
+
+      //  Terms are unique, so the probe never finds an equal key.
+      int slot = hash(term.bytes, term.offset, term.length) & this.mask;
+
+      while (this.slots.get(slot) != 0) {
+        slot = (slot + 1) & this.mask;
+      }
+      this.slots.put(slot, first + 1);
+    }
+  }
+
+  /**
+   * Build the table for an index.
+   * @param reader IndexReader object created in {@link Idx}.
+   * @return The table, or null if the index has no externalId terms.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public static ExternalIdTable build(IndexReader reader) throws IOException {
+    Terms terms = MultiFields.getTerms(reader, FIELD);
+    return (terms == null) ? null : new ExternalIdTable(reader, terms);
+  }
+
+  /**
+   * Returns the external docid of a document.
+   * @param docid The internal docid in the lucene index.
+   * @return The external docid, or null if the document is not in the table.
+   */
+  public String getExternalDocid(int docid) {
+    if ((docid < 0) || (docid >= this.offsets.limit())) {
+      return null;
+    }
+
+    int offset = this.offsets.get(docid);
+
+    if (offset < 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[this.pool.getShort(offset) & 0xFFFF];
+
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = this.pool.get(offset + 2 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the internal docid of a document.
+   * @param externalId The external docid.
+   * @return The internal docid, or -1 if no document has the external id.
+   */
+  public int getInternalDocid(String externalId) {
+    byte[] key = externalId.getBytes(StandardCharsets.UTF_8);
+    int slot = hash(key, 0, key.length) & this.mask;
+    int entry;
+
+    while ((entry = this.slots.get(slot)) != 0) {
+      if (this.equals(this.offsets.get(entry - 1), key)) {
+        return entry - 1;
+      }
+      slot = (slot + 1) & this.mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Compare a string in the pool with a key.
+   * @param offset The offset of the string in the pool.
+   * @param key The UTF-8 bytes of the key.
+   * @return true if the string equals the key.
+   */
+  private boolean equals(int offset, byte[] key) {
+    if ((this.pool.getShort(offset) & 0xFFFF) != key.length) {
+      return false;
+    }
+
+    for (int i = 0; i < key.length; i++) {
+      if (this.pool.get(offset + 2 + i) != key[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Hash a byte string.  The result is mixed so that ids that differ
+   * only in their last characters spread across the table.
+   * @param bytes The bytes to hash.
+   * @param offset The first byte.
+   * @param length The number of bytes.
+   * @return The hash value.
+   */
+  private static int hash(byte[] bytes, int offset, int length) {
+    int h = 0;
+
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + bytes[i];
+    }
+
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+}
@@ -35,6 +35,28 @@ public class Idx {
     new HashMap<String,IndexReader> ();
   private static HashMap<String,DocLengthStore> openDocLengthStores =
     new HashMap<String,DocLengthStore> ();
+  private static boolean docLengthsInMemory = false;
+
+  private static ExternalIdTable EXTERNALIDTABLE=null;
+  private static HashMap<String,ExternalIdTable> openExternalIdTables =
+    new HashMap<String,ExternalIdTable> ();
+
+  private static BlockMaxIndex BLOCKMAXINDEX=null;
+  private static HashMap<String,BlockMaxIndex> openBlockMaxIndexes =
+    new HashMap<String,BlockMaxIndex> ();
+
+  /**
+   *  A cache of inverted lists read from the current index, keyed by
+   *  "field:term".  The cache is kept in least-recently-used order
+   *  and is limited by the total size of the cached lists.  Cached
+   *  lists are shared by query operators, so they must not be changed.
+   */
+  private static final LinkedHashMap<String,InvList> POSTINGCACHE =
+    new LinkedHashMap<String,InvList> (16, 0.75f, true);
+  private static long postingCacheBudget = 0;	// bytes; 0 disables the cache
+  private static long postingCacheBytes = 0;
+  private static long postingCacheHits = 0;
+  private static long postingCacheMisses = 0;
 
   //  --------------- Methods ---------------------------------------
 
@@ -50,6 +72,28 @@ public class Idx {
     return d.get (attributeName);
   }
 
+  /**
+   *  Get the block-max metadata of an inverted list from the current
+   *  index's sidecar file.
+   *  @param fieldName The field name.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The blocks, or null if the sidecar file doesn't have them.
+   */
+  public static BlockMaxIndex.Blocks getBlocks (String fieldName, String term) {
+    return (Idx.BLOCKMAXINDEX == null) ? null :
+      Idx.BLOCKMAXINDEX.getBlocks (fieldName, term);
+  }
+
+  /**
+   *  Get the number of postings per block of block-max metadata.
+   *  @return The block size of the current index's sidecar file, or
+   *  the default block size if the index has none.
+   */
+  public static int getBlockSize () {
+    return (Idx.BLOCKMAXINDEX == null) ? BlockMaxIndex.DEFAULT_BLOCK_SIZE :
+      Idx.BLOCKMAXINDEX.getBlockSize ();
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -60,6 +104,19 @@ public class Idx {
     return Idx.INDEXREADER.getDocCount (fieldName);
   }
 
+  /**
+   *  Get the document frequency (df) of a term in a field (e.g., the
+   *  number of documents that contain 'apple' in the title field).
+   *  The count includes deleted documents.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The number of documents that contain the term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDocFreq (String fieldName, String term) throws IOException {
+    return INDEXREADER.docFreq (new Term (fieldName, new BytesRef (term)));
+  }
+
   /**
    *  Get the external document id for a document specified by an
    *  internal document id.
@@ -68,11 +125,84 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
+    if (Idx.EXTERNALIDTABLE != null) {
+      String eid = Idx.EXTERNALIDTABLE.getExternalDocid(iid);
+
+      if (eid != null)
+        return eid;
+    }
+
+    //  Not in the table (e.g., a deleted document).
     Document d = Idx.INDEXREADER.document(iid);
     String eid = d.get("externalId");
     return eid;
   }
 
+  /**
+   *  Get the inverted list of a term in a field.  Lists are served
+   *  from the posting cache when possible; otherwise they are read
+   *  from the index and added to the cache if it has room.  The list
+   *  may be shared with other callers, so it must not be changed.
+   *  @param fieldName The field name.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList getInvList (String fieldName, String term) throws IOException {
+
+    String key = fieldName + ":" + term;
+
+    synchronized (POSTINGCACHE) {
+      if (postingCacheBudget > 0) {
+        InvList cached = POSTINGCACHE.get (key);
+
+        if (cached != null) {
+          postingCacheHits ++;
+          return cached;
+        }
+
+        postingCacheMisses ++;
+      }
+    }
+
+    //  Read the list outside of the lock; it may be long.
+    InvList invList = new InvList (term, fieldName);
+
+    synchronized (POSTINGCACHE) {
+      long size = invList.getSizeInBytes ();
+
+      if ((size <= postingCacheBudget) && (! POSTINGCACHE.containsKey (key))) {
+        POSTINGCACHE.put (key, invList);
+        postingCacheBytes += size;
+        trimPostingCache (postingCacheBudget);
+      }
+    }
+
+    return invList;
+  }
+
+  /**
+   *  Get the number of inverted list requests that the posting cache
+   *  satisfied since the cache was last cleared.
+   *  @return The number of cache hits.
+   */
+  public static long getPostingCacheHits () {
+    synchronized (POSTINGCACHE) {
+      return postingCacheHits;
+    }
+  }
+
+  /**
+   *  Get the number of inverted list requests that the posting cache
+   *  could not satisfy since the cache was last cleared.
+   *  @return The number of cache misses.
+   */
+  public static long getPostingCacheMisses () {
+    synchronized (POSTINGCACHE) {
+      return postingCacheMisses;
+    }
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldName Name of field to access lengths.
@@ -84,6 +214,27 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  @param fieldOrdinal The ordinal of the field, from getFieldOrdinal.
+   *  @param docid The internal docid in the Lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getFieldLength (int fieldOrdinal, int docid) throws IOException {
+    return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldOrdinal, docid);
+  }
+
+  /**
+   *  Get the ordinal of a field in the current index.  Callers that
+   *  look up many field lengths can resolve the field once.
+   *  @param fieldName The field name.
+   *  @return the ordinal of the field, or -1 if the field isn't indexed.
+   */
+  public static int getFieldOrdinal (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getFieldOrdinal (fieldName);
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -93,6 +244,16 @@ public class Idx {
    * @throws Exception Could not read the internal document id from the index.
    */
   public static int getInternalDocid(String externalId) throws Exception {
+    if (Idx.EXTERNALIDTABLE != null) {
+      int iid = Idx.EXTERNALIDTABLE.getInternalDocid(externalId);
+
+      if (iid < 0) {
+        throw new Exception("External id not found.");
+      }
+      return iid;
+    }
+
+    //  The index has no externalId terms to build a table from.
     Query q = new TermQuery(new Term("externalId", externalId));
 
     IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
@@ -128,6 +289,20 @@ public class Idx {
     return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
   }
 
+  /**
+   *  Get a Lucene iterator over the postings (documents and
+   *  locations) of a term in a field.  Deleted documents are skipped.
+   *  @param fieldName The field name.
+   *  @param term The term.
+   *  @return The postings iterator, or null if the term does not occur.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static DocsAndPositionsEnum getTermPositions (String fieldName, String term)
+    throws IOException {
+    return MultiFields.getTermPositionsEnum (INDEXREADER,
+      MultiFields.getLiveDocs (INDEXREADER), fieldName, new BytesRef (term));
+  }
+
   /**
    *  Get the collection term frequency (ctf) of a term in
    *  a field (e.g., the total number of times the term 'apple'
@@ -142,7 +317,8 @@ public class Idx {
   }
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index and the associated DocLengthStore and
+   *  ExternalIdTable.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -161,21 +337,84 @@ public class Idx {
   
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
-    docLengthStore = new DocLengthStore (indexReader);
+    docLengthStore = new DocLengthStore (indexReader, docLengthsInMemory);
   
     if (docLengthStore == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
 
+    //  Translating between internal and external docids is frequent,
+    //  so the translations are cached in a table.
+    ExternalIdTable externalIdTable = ExternalIdTable.build (indexReader);
+
+    //  Block-max metadata is optional; see BlockMaxIndex.
+    BlockMaxIndex blockMaxIndex = BlockMaxIndex.open (indexPath, indexReader);
+
     //  Keep track of the open indexes.
     openIndexReaders.put (indexPath, indexReader);
     openDocLengthStores.put (indexPath, docLengthStore);
+    openExternalIdTables.put (indexPath, externalIdTable);
+    openBlockMaxIndexes.put (indexPath, blockMaxIndex);
 
     //  The current index defaults to the first open index.
 
     if (Idx.INDEXREADER == null) {
       Idx.INDEXREADER = indexReader;
       Idx.DOCLENGTHSTORE = docLengthStore;
+      Idx.EXTERNALIDTABLE = externalIdTable;
+      Idx.BLOCKMAXINDEX = blockMaxIndex;
+      clearPostingCache ();
+    }
+  }
+
+  /**
+   *  Discard all cached inverted lists and reset the cache counters.
+   *  Cached query trees were optimized for the old index, so they are
+   *  discarded too (see QryPlanCache.clear).
+   */
+  private static void clearPostingCache () {
+    synchronized (POSTINGCACHE) {
+      POSTINGCACHE.clear ();
+      postingCacheBytes = 0;
+      postingCacheHits = 0;
+      postingCacheMisses = 0;
+    }
+    QryPlanCache.clear ();
+  }
+
+  /**
+   *  Set whether indexes opened from now on copy their document
+   *  lengths into memory.
+   *  @param inMemory True to copy document lengths into memory.
+   */
+  public static void setDocLengthsInMemory (boolean inMemory) {
+    docLengthsInMemory = inMemory;
+  }
+
+  /**
+   *  Set the memory budget of the posting cache.  Least recently used
+   *  lists are evicted when the budget is exceeded.  A budget of 0
+   *  disables the cache.
+   *  @param bytes The maximum total size of the cached lists, in bytes.
+   */
+  public static void setPostingCacheSize (long bytes) {
+    synchronized (POSTINGCACHE) {
+      postingCacheBudget = Math.max (0, bytes);
+      trimPostingCache (postingCacheBudget);
+    }
+  }
+
+  /**
+   *  Evict least recently used lists until the cache fits the budget.
+   *  The caller must hold the cache lock.
+   *  @param bytes The maximum total size of the cached lists, in bytes.
+   */
+  private static void trimPostingCache (long bytes) {
+    Iterator<Map.Entry<String,InvList>> it = POSTINGCACHE.entrySet ().iterator ();
+
+    while ((postingCacheBytes > bytes) && it.hasNext ()) {
+      postingCacheBytes -= it.next ().getValue ().getSizeInBytes ();
+      it.remove ();
     }
   }
 
@@ -197,5 +436,8 @@ public class Idx {
 
     Idx.INDEXREADER = indexReader;
     Idx.DOCLENGTHSTORE = docLengthStore;
+    Idx.EXTERNALIDTABLE = openExternalIdTables.get (indexPath);
+    Idx.BLOCKMAXINDEX = openBlockMaxIndexes.get (indexPath);
+    clearPostingCache ();
   }
 }
@@ -14,11 +14,25 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in parallel primitive arrays rather than as
+ *  one object per document.  The n'th posting is docids[n] and
+ *  tfs[n]; its locations are positions[positionOffsets[n]] through
+ *  positions[positionOffsets[n] + tfs[n] - 1].  All locations share
+ *  a single positions pool.  The arrays grow as postings are
+ *  appended, so they may be longer than df (or ctf); entries beyond
+ *  df (or ctf) are unused.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of the arrays of an empty inverted list.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -35,51 +49,35 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field, in ascending order.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  public int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequency:  The number of times the term occurs in the
+   *  specified field of each document.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  public int[] tfs;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The index in the positions pool of the first location of each
+   *  posting.
+   */
+  public int[] positionOffsets;
 
-    public DocPosting(int d, int[] locations) {
-//    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The locations of all postings, stored posting after posting.
+   */
+  public int[] positions;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-    	  this.positions.add(locations.get(i));
-    }
-  }
+  //  Statistics for score upper bounds, computed when first requested;
+  //  -1 (or null) until then.  Cached lists are shared by threads, so
+  //  the statistics are volatile, and the blocks are published together
+  //  with their block size.
+  private volatile int maxTf = -1;
+  private volatile int minFieldLength = -1;
+  private volatile SizedBlocks blocks = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -87,6 +85,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -95,6 +94,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
 	  this.field = new String (fieldString);
+	  this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -112,8 +112,18 @@ public class InvList {
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int docFreq = Idx.INDEXREADER.docFreq(term);
+
+    if (docFreq < 1) {
+      this.allocate (0, 0);
     	return;
+    }
+
+    //  The index statistics give the exact size of the list (unless
+    //  there are deleted documents), so the arrays rarely grow.
+    long totalTermFreq = Idx.INDEXREADER.totalTermFreq(term);
+    this.allocate (docFreq,
+                   (int) Math.max (docFreq, Math.min (totalTermFreq, Integer.MAX_VALUE)));
 
     //  Lookup the inverted list.
     DocsAndPositionsEnum iList = MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
@@ -127,17 +137,53 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
+      this.positionOffsets[this.df] = this.ctf;
 
       for (int j = 0; j < tf; j++)
-    	  	positions[j] = iList.nextPosition();
+    	  	this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
     }
   }
 
+  /**
+   *  Allocate the posting arrays.
+   *  @param numPostings The initial posting capacity.
+   *  @param numPositions The initial capacity of the positions pool.
+   */
+  private void allocate (int numPostings, int numPositions) {
+    this.docids = new int[numPostings];
+    this.tfs = new int[numPostings];
+    this.positionOffsets = new int[numPostings];
+    this.positions = new int[numPositions];
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can hold
+   *  the specified number of postings and locations.
+   *  @param numPostings The required posting capacity.
+   *  @param numPositions The required capacity of the positions pool.
+   */
+  private void ensureCapacity (int numPostings, int numPositions) {
+
+    if (numPostings > this.docids.length) {
+      int capacity = Math.max (numPostings, 2 * this.docids.length);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, capacity);
+    }
+
+    if (numPositions > this.positions.length) {
+      int capacity = Math.max (numPositions, 2 * this.positions.length);
+      this.positions = Arrays.copyOf (this.positions, capacity);
+    }
+  }
+
   /**
    *  Append a posting to the posting list.  Posting must be appended
    *  in docid order, otherwise this method fails.
@@ -146,28 +192,148 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
-    
-    //  A posting can only be appended if its docid is greater than
-    //  the last docid.
 
-    if (this.df > 1 && (this.postings.get(this.df-1).docid >= docid))
+    int tf = positions.size();
+
+    if (! this.canAppend (docid))
     	return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
 
-    this.postings.add (p);
-    this.df ++;
-    this.ctf += p.tf;
+    for (int j = 0; j < tf; j++)
+      this.positions[this.ctf + j] = positions.get(j);
+
+    this.commitPosting (docid, tf);
+    return true;
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.  The locations are
+   *  copied, so the caller may reuse the array.
+   *  @param docid The internal document id of the posting.
+   *  @param positions An array of positions where the term occurs.
+   *  @param tf The number of positions to copy from the array.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions, int tf) {
+
+    if (! this.canAppend (docid))
+    	return false;
+
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+    System.arraycopy (positions, 0, this.positions, this.ctf, tf);
+    this.commitPosting (docid, tf);
     return true;
   }
 
+  /**
+   *  A posting can only be appended if its docid is greater than
+   *  the last docid.
+   *  @param docid The internal document id of the new posting.
+   *  @return true if the posting can be appended, otherwise false.
+   */
+  private boolean canAppend (int docid) {
+    return (this.df == 0 || this.docids[this.df-1] < docid);
+  }
+
+  /**
+   *  Record a posting whose locations were already copied to the end
+   *  of the positions pool.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The number of locations in the posting.
+   */
+  private void commitPosting (int docid, int tf) {
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionOffsets[this.df] = this.ctf;
+    this.df ++;
+    this.ctf += tf;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param docid The index of the requested document.
    *  @return The internal document id.
    */
   public int getDocid(int docid) {
-	  return this.postings.get(docid).docid;
+	  return this.docids[docid];
+  }
+
+  /**
+   *  Get the j'th location in the n'th document of the inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location within the document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+	  return this.positions[this.positionOffsets[n] + j];
+  }
+
+  /**
+   *  Get the largest term frequency in the inverted list.
+   *  @return The largest tf, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+
+    if (this.maxTf < 0) {
+      int max = 0;
+
+      for (int i = 0; i < this.df; i++)
+        max = Math.max (max, this.tfs[i]);
+
+      this.maxTf = max;
+    }
+
+    return this.maxTf;
+  }
+
+  /**
+   *  Get the shortest length of the inverted list's field in the
+   *  documents of the inverted list.
+   *  @return The shortest field length, or 0 if it is unknown.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMinFieldLength() throws IOException {
+
+    if (this.minFieldLength < 0) {
+      int ordinal = (this.field == null) ? -1 : Idx.getFieldOrdinal (this.field);
+      int min = (this.df > 0 && ordinal >= 0) ? Integer.MAX_VALUE : 0;
+
+      for (int i = 0; i < this.df && ordinal >= 0; i++)
+        min = Math.min (min, Idx.getFieldLength (ordinal, this.docids[i]));
+
+      this.minFieldLength = min;
+    }
+
+    return this.minFieldLength;
+  }
+
+  /**
+   *  Get the block-max metadata of the inverted list.  The blocks are
+   *  computed when first requested.
+   *  @param blockSize The number of postings per block.
+   *  @return The blocks of the inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public BlockMaxIndex.Blocks getBlocks(int blockSize) throws IOException {
+
+    SizedBlocks b = this.blocks;
+
+    if (b == null || b.blockSize != blockSize) {
+      b = new SizedBlocks (BlockMaxIndex.Blocks.compute (this, blockSize), blockSize);
+      this.blocks = b;
+    }
+
+    return b.blocks;
+  }
+
+  /**
+   *  Get the approximate amount of memory used by the inverted list.
+   *  @return The size of the inverted list, in bytes.
+   */
+  public long getSizeInBytes() {
+	  return 64L + 4L * (3L * this.docids.length + this.positions.length);
   }
 
   /**
@@ -176,7 +342,7 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-	  return this.postings.get(n).tf;
+	  return this.tfs[n];
   }
 
   /**
@@ -187,14 +353,27 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-    	System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+    	System.out.print("docid:  " + this.docids[i] + ", tf: "
+          + this.tfs[i] + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-    	  System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.tfs[i]; j++) {
+    	  System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
     }
   }
+
+  /**
+   *  Block-max metadata and the block size that it was computed for.
+   */
+  private static final class SizedBlocks {
+    final BlockMaxIndex.Blocks blocks;
+    final int blockSize;
+
+    SizedBlocks (BlockMaxIndex.Blocks blocks, int blockSize) {
+      this.blocks = blocks;
+      this.blockSize = blockSize;
+    }
+  }
 }
@@ -100,6 +100,23 @@ public abstract class Qry {
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  docIteratorHasMatchMin keeps the arguments of operators with at
+   *  least this many arguments in a heap instead of scanning them.
+   */
+  private static final int MIN_HEAP_ARGS = 16;
+
+  /**
+   *  A min-heap of the arguments that aren't exhausted (argument
+   *  indexes), ordered by lower bounds on their current docids.  The
+   *  arguments only move forward, so a bound is refreshed only when it
+   *  reaches the top of the heap.  null until docIteratorHasMatchMin
+   *  builds it.
+   */
+  private int[] heapArgs = null;
+  private int[] heapDocids = null;
+  private int heapSize = 0;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -195,8 +212,20 @@ public abstract class Qry {
    */
   public void docIteratorAdvancePast(int docid) {
 
-      for(Qry q_i: this.args) {
-          q_i.docIteratorAdvancePast(docid);
+      if(this.heapArgs != null) {
+
+          //  Only the arguments whose bounds are at most docid can be
+          //  at docid.  Afterwards they are past it.
+          while((this.heapSize > 0) && (this.heapDocids[0] <= docid)) {
+              this.args.get(this.heapArgs[0]).docIteratorAdvancePast(docid);
+              this.heapDocids[0] = docid + 1;
+              this.heapSiftDown(0);
+          }
+      }
+      else {
+          for(Qry q_i: this.args) {
+              q_i.docIteratorAdvancePast(docid);
+          }
       }
 
       this.docIteratorClearMatchCache();
@@ -209,13 +238,32 @@ public abstract class Qry {
    */
   public void docIteratorAdvanceTo(int docid) {
 
-    for(Qry q_i: this.args) {
-        q_i.docIteratorAdvanceTo(docid);
+    if(this.heapArgs != null) {
+        while((this.heapSize > 0) && (this.heapDocids[0] < docid)) {
+            this.args.get(this.heapArgs[0]).docIteratorAdvanceTo(docid);
+            this.heapDocids[0] = docid;
+            this.heapSiftDown(0);
+        }
+    }
+    else {
+        for(Qry q_i: this.args) {
+            q_i.docIteratorAdvanceTo(docid);
+        }
     }
 
     this.docIteratorClearMatchCache();
   }
 
+  /**
+   *  Discard the argument heap of docIteratorHasMatchMin.  It must be
+   *  discarded whenever the arguments are initialized.
+   */
+  protected void docIteratorClearHeap() {
+      this.heapArgs = null;
+      this.heapDocids = null;
+      this.heapSize = 0;
+  }
+
   /**
    *  Clear the docIterator's matching docid cache. The cache should
    *  be cleared whenever a docIterator is advanced.
@@ -326,6 +374,9 @@ public abstract class Qry {
    */
   protected boolean docIteratorHasMatchMin(RetrievalModel r) {
 
+    if(this.args.size() >= MIN_HEAP_ARGS)
+        return this.docIteratorHasMatchMinHeap(r);
+
     int minDocid = Qry.INVALID_DOCID;
 
     for(int i = 0; i < this.args.size(); i++) {
@@ -347,6 +398,89 @@ public abstract class Qry {
         return false;
   }
 
+  /**
+   *  docIteratorHasMatchMin for operators with many arguments.  The
+   *  argument at the top of the heap is the match if its bound is its
+   *  current docid, because every other argument's docid is at least
+   *  its bound.  Otherwise the bound is refreshed and the search
+   *  continues.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  private boolean docIteratorHasMatchMinHeap(RetrievalModel r) {
+
+    if(this.heapArgs == null) {
+        this.heapArgs = new int[this.args.size()];
+        this.heapDocids = new int[this.args.size()];
+        this.heapSize = 0;
+
+        for(int i = 0; i < this.args.size(); i++) {
+            Qry q_i = this.args.get(i);
+
+            if(q_i.docIteratorHasMatch(r)) {
+                this.heapArgs[this.heapSize] = i;
+                this.heapDocids[this.heapSize] = q_i.docIteratorGetMatch();
+                this.heapSize++;
+            }
+        }
+
+        for(int i = this.heapSize / 2 - 1; i >= 0; i--)
+            this.heapSiftDown(i);
+    }
+
+    while(this.heapSize > 0) {
+        Qry q_top = this.args.get(this.heapArgs[0]);
+
+        if(!q_top.docIteratorHasMatch(r)) {		// Exhausted.  Remove it.
+            this.heapSize--;
+            this.heapArgs[0] = this.heapArgs[this.heapSize];
+            this.heapDocids[0] = this.heapDocids[this.heapSize];
+            this.heapSiftDown(0);
+            continue;
+        }
+
+        int docid = q_top.docIteratorGetMatch();
+
+        if(docid == this.heapDocids[0]) {
+            docIteratorSetMatchCache(docid);
+            return true;
+        }
+
+        this.heapDocids[0] = docid;
+        this.heapSiftDown(0);
+    }
+
+    return false;
+  }
+
+  /**
+   *  Move a heap entry toward the leaves until its bound is at most
+   *  the bounds of its children.
+   *  @param i The index of the heap entry.
+   */
+  private void heapSiftDown(int i) {
+    int arg = this.heapArgs[i];
+    int docid = this.heapDocids[i];
+
+    while(true) {
+        int child = 2 * i + 1;
+
+        if(child >= this.heapSize)
+            break;
+        if((child + 1 < this.heapSize) && (this.heapDocids[child + 1] < this.heapDocids[child]))
+            child++;
+        if(this.heapDocids[child] >= docid)
+            break;
+
+        this.heapArgs[i] = this.heapArgs[child];
+        this.heapDocids[i] = this.heapDocids[child];
+        i = child;
+    }
+
+    this.heapArgs[i] = arg;
+    this.heapDocids[i] = docid;
+  }
+
   /**
    *  Return the status of the cache.
    *  @return True if a match is cached, otherwise false.
@@ -399,6 +533,22 @@ public abstract class Qry {
 	  this.args.remove(i);
   };
 
+  /**
+   *  Reset the query operator and its arguments so that the query can
+   *  be evaluated again, for example when a parsed query is cached.
+   *  Cached matches, inverted lists, and other evaluation state are
+   *  discarded, so that a cached query doesn't hold on to postings;
+   *  the query must be initialized again before iteration can begin.
+   */
+  public void reset() {
+      this.docIteratorClearMatchCache();
+      this.docIteratorClearHeap();
+
+      for(Qry q_i: this.args) {
+          q_i.reset();
+      }
+  }
+
   /**
    *  Every operator must have a display name that can be used by
    *  toString for debugging or other user feedback.
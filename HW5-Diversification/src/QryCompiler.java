@@ -0,0 +1,116 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  QryCompiler turns a query tree into a tree of scorers that are
+ *  specialized for a retrieval model (see QryScorer).  The query tree
+ *  is still used to find the documents that match, one at a time or a
+ *  block at a time (see QrySop.nextBlock); the scorer tree computes
+ *  their scores without testing the type of the retrieval model or
+ *  reading its parameters for each document.
+ *  <p>
+ *  A query must be compiled after it is initialized, because the
+ *  SCORE scorers use the corpus statistics that the SCORE operators
+ *  cache when they are initialized.  Queries with
+ *  operators that a retrieval model doesn't support aren't compiled, so
+ *  that they report the same errors as before.
+ *  </p>
+ */
+public class QryCompiler {
+
+  /**
+   *  Compile an initialized query.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The scorer of the query, or null if the query can't be
+   *  compiled for the retrieval model.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static QryScorer compile(Qry q, RetrievalModel r) throws IOException {
+
+    if (q instanceof QrySopScore)
+      return compileScore((QrySopScore) q, r);
+
+    if (! (q instanceof QrySop) || q.args.size() == 0)
+      return null;
+
+    QryScorer[] args = new QryScorer[q.args.size()];
+
+    for (int i = 0; i < args.length; i++) {
+      args[i] = compile(q.args.get(i), r);
+      if (args[i] == null)
+        return null;
+    }
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      if ((q instanceof QrySopAnd) || (q instanceof QrySopOr))
+        return new QryScorer.UnrankedBoolean(q, r, args);
+    }
+    else if (r instanceof RetrievalModelRankedBoolean) {
+      if (q instanceof QrySopAnd)
+        return new QryScorer.RankedBooleanAnd(q, r, args);
+      else if (q instanceof QrySopOr)
+        return new QryScorer.RankedBooleanOr(q, r, args);
+    }
+    else if (r instanceof RetrievalModelBM25) {
+      if (q instanceof QrySopSum)
+        return new QryScorer.BM25Sum(q, r, args);
+    }
+    else if (r instanceof RetrievalModelIndri) {
+      if (q instanceof QrySopAnd)
+        return new QryScorer.IndriAnd(q, r, args, null);
+      else if (q instanceof QrySopWAnd)
+        return new QryScorer.IndriAnd(q, r, args, normalize(((QrySopWAnd) q).weights));
+      else if (q instanceof QrySopOr)
+        return new QryScorer.IndriOr(q, r, args);
+      else if (q instanceof QrySopWSum)
+        return new QryScorer.IndriWSum(q, r, args, normalize(((QrySopWSum) q).weights));
+    }
+
+    return null;
+  }
+
+  /**
+   *  Compile a SCORE operator.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The scorer of the query, or null if the retrieval model
+   *  isn't supported.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private static QryScorer compileScore(QrySopScore q, RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelUnrankedBoolean)
+      return new QryScorer.UnrankedBooleanScore(q, r);
+    else if (r instanceof RetrievalModelRankedBoolean)
+      return new QryScorer.RankedBooleanScore(q, r);
+    else if (r instanceof RetrievalModelBM25)
+      return new QryScorer.BM25Score(q, (RetrievalModelBM25) r);
+    else if (r instanceof RetrievalModelIndri)
+      return new QryScorer.IndriScore(q, (RetrievalModelIndri) r);
+    else
+      return null;
+  }
+
+  /**
+   *  Divide weights by their total, as the weighted operators do.
+   *  @param weights The weights.
+   *  @return The normalized weights.
+   */
+  private static double[] normalize(Vector<Double> weights) {
+    double total = 0.0;
+
+    for (int i = 0; i < weights.size(); i++)
+      total += weights.get(i);
+
+    double[] normalized = new double[weights.size()];
+
+    for (int i = 0; i < normalized.length; i++)
+      normalized[i] = weights.get(i) / total;
+
+    return normalized;
+  }
+}
@@ -210,13 +210,13 @@ public class QryDiversification {
                     intentScores = this.initIntentRanking.get(qid);
                 }
                 else{
-                    qryScore = QryEval.processQuery(Integer.parseInt(qid), query, model);
+                    qryScore = QryEval.processQuery(Integer.parseInt(qid), query, model, this.inputRankingLen);
                     qryScore.sort();
 
                     for(int i = 0; i < intents.size(); i++){
                         String intent = intents.get(i);
                         String body = this.intentBody.get(qid).get(i);
-                        ScoreList s = QryEval.processQuery(0, body, model);
+                        ScoreList s = QryEval.processQuery(0, body, model, this.inputRankingLen);
                         s.sort();
                         intentScores.put(intent, s);
 //                        QryEval.printResults(intent, initial);
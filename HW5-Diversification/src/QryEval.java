@@ -4,6 +4,7 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -36,6 +37,12 @@ public class QryEval {
   private static int outputLength = 100;
   //  Output path of trec_eval file
   private static String outputPath;
+  //  Number of queries evaluated concurrently
+  private static int threads = 1;
+  //  Skip documents that can't be in the top outputLength
+  private static boolean dynamicPruning = false;
+  //  Number of documents per block in block-at-a-time evaluation
+  private static final int BLOCK_SIZE = 256;
 
   //  --------------- Methods ---------------------------------------
 
@@ -70,6 +77,51 @@ public class QryEval {
     else if(parameters.containsKey("diversity:maxResultRankingsLength"))
         outputLength = Integer.parseInt(parameters.get("diversity:maxResultRankingsLength"));
     
+    // evaluate several queries concurrently (default: 1)
+    if(parameters.containsKey("threads")) {
+        threads = Integer.parseInt(parameters.get("threads"));
+        if(threads < 1) throw new IllegalArgumentException
+                ("Illegal argument: " + parameters.get("threads") + ", threads is an integer > 0");
+    }
+
+    // skip documents that can't be in the top k (default: false)
+    if(parameters.containsKey("dynamicPruning"))
+        dynamicPruning = parameters.get("dynamicPruning").equals("true");
+
+    // limit the accumulators of term-at-a-time evaluation (default: no limit)
+    if(parameters.containsKey("accumulatorLimit")) {
+        String strategy = parameters.get("accumulatorStrategy");
+        if(strategy != null && !strategy.equals("quit") && !strategy.equals("continue"))
+            throw new IllegalArgumentException
+                    ("Illegal argument: " + strategy + ", accumulatorStrategy is quit or continue");
+        QryTermAtATime.setAccumulatorLimit(Integer.parseInt(parameters.get("accumulatorLimit")),
+                "quit".equals(strategy));
+    }
+
+    // read term postings lazily from the index instead of copying them
+    if(parameters.containsKey("lazyPostings"))
+        QryIopTerm.setLazyPostings(parameters.get("lazyPostings").equals("true"));
+
+    // find the documents that #WINDOW/n matches on demand (default: false)
+    if(parameters.containsKey("lazyWindows"))
+        QryIopWindow.setLazyEvaluation(parameters.get("lazyWindows").equals("true"));
+
+    // cache inverted lists across queries (size in MB, default: disabled)
+    if(parameters.containsKey("postingCacheMB"))
+        Idx.setPostingCacheSize(Long.parseLong(parameters.get("postingCacheMB")) * 1024L * 1024L);
+
+    // cache analyzed query terms (number of strings, default: 10000)
+    if(parameters.containsKey("termCacheSize"))
+        QryParser.setTermCacheSize(Integer.parseInt(parameters.get("termCacheSize")));
+
+    // cache parsed queries across evaluations (number of queries, default: disabled)
+    if(parameters.containsKey("queryPlanCacheSize"))
+        QryPlanCache.setSize(Integer.parseInt(parameters.get("queryPlanCacheSize")));
+
+    // copy document lengths into memory when the index is opened
+    if(parameters.containsKey("docLengthsInMemory"))
+        Idx.setDocLengthsInMemory(parameters.get("docLengthsInMemory").equals("true"));
+
     // Open the index and initialize the retrieval model.
     Idx.open(parameters.get("indexPath"));
     RetrievalModel model = initializeRetrievalModel(parameters);
@@ -91,6 +143,18 @@ public class QryEval {
     // Clean up.
     timer.stop();
     System.out.println("Time:  " + timer);
+
+    if(parameters.containsKey("postingCacheMB"))
+        System.out.println(String.format("Posting cache:  %d hits, %d misses",
+                Idx.getPostingCacheHits(), Idx.getPostingCacheMisses()));
+
+    if(parameters.containsKey("termCacheSize"))
+        System.out.println(String.format("Term cache:  %d hits, %d misses",
+                QryParser.getTermCacheHits(), QryParser.getTermCacheMisses()));
+
+    if(parameters.containsKey("queryPlanCacheSize"))
+        System.out.println(String.format("Query plan cache:  %d hits, %d misses",
+                QryPlanCache.getHits(), QryPlanCache.getMisses()));
   }
 
   /**
@@ -162,6 +226,56 @@ public class QryEval {
 //        +((runtime.totalMemory() - runtime.freeMemory()) /(1024L * 1024L)) + " MB");
   }
 
+  /**
+   * Evaluate a parsed query.  Flat sum-like queries are evaluated
+   * term-at-a-time.  Other queries are scored by a compiled scorer tree
+   * (see QryCompiler), a block of documents at a time if the scorers
+   * support it, otherwise document-at-a-time.  Only the best documents
+   * are kept.
+   * @param q The query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The maximum number of documents to return.
+   * @return Search results, in no particular order until sorted.
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList evaluateQuery(Qry q, RetrievalModel model, int k) throws IOException {
+
+      if (dynamicPruning && QryMaxScore.supports(q, model))
+          return QryMaxScore.evaluate((QrySop) q, model, k);
+
+      if (QryTermAtATime.supports(q, model))
+          return QryTermAtATime.evaluate((QrySop) q, model, k);
+
+      ScoreList r = new ScoreList(k);
+      q.initialize(model);
+
+      //  Score with a compiled scorer tree if the query can be compiled,
+      //  a block of documents at a time if the scorers support it.
+      QryScorer scorer = QryCompiler.compile(q, model);
+
+      if (scorer != null && scorer.supportsBlocks()) {
+          int[] docids = new int[BLOCK_SIZE];
+          double[] scores = new double[BLOCK_SIZE];
+          boolean[] matches = new boolean[BLOCK_SIZE];
+          int n;
+
+          while ((n = ((QrySop) q).nextBlock(model, docids)) > 0) {
+              scorer.scoreBlock(docids, n, scores, matches);
+              for (int i = 0; i < n; i++)
+                  r.add(docids[i], scores[i]);
+          }
+          return r;
+      }
+
+      while (q.docIteratorHasMatch(model)) {
+          int docid = q.docIteratorGetMatch();
+          double score = (scorer != null) ? scorer.getScore(docid) : ((QrySop) q).getScore(model);
+          r.add(docid, score);
+          q.docIteratorAdvancePast(docid);
+      }
+      return r;
+  }
+
   /**
    * Process one query.
    * @param qString A string that contains a query.
@@ -170,41 +284,51 @@ public class QryEval {
    * @throws IOException Error accessing the index
    */
   static ScoreList processQuery(int qid, String qString, RetrievalModel model) throws IOException {
+      return processQuery(qid, qString, model, outputLength);
+  }
+
+  /**
+   * Process one query.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param k The maximum number of documents to return.
+   * @return Search results
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(int qid, String qString, RetrievalModel model, int k) throws IOException {
 
       String defaultOp = model.defaultQrySopName();
       qString = defaultOp + "(" + qString + ")";
-      Qry q = QryParser.getQuery(qString);
+      Qry q = QryPlanCache.acquire(qString, model);
 
-      if (q != null) {
-          ScoreList r = new ScoreList();
+      try {
+          if (q != null) {
+              ScoreList r = new ScoreList();
 
-          if (q.args.size() > 0) {        // Ignore empty queries
+              if (q.args.size() > 0) {        // Ignore empty queries
 
-              if (model instanceof RetrievalModelIndri) {
-                  RetrievalModelIndri Indri = (RetrievalModelIndri) model;
-                  if(Indri.getFilePath("fb").equals("true")) {
-                      QryExpansion QryExp = new QryExpansion();
-                      return QryExp.getScoreList(qid, q, qString, Indri);
+                  if (model instanceof RetrievalModelIndri) {
+                      RetrievalModelIndri Indri = (RetrievalModelIndri) model;
+                      if(Indri.getFilePath("fb").equals("true")) {
+                          QryExpansion QryExp = new QryExpansion();
+                          return QryExp.getScoreList(qid, q, qString, Indri, k);
+                      }
                   }
-              }
 
-              q.initialize(model);
-
-              while (q.docIteratorHasMatch(model)) {
-                  int docid = q.docIteratorGetMatch();
-                  double score = ((QrySop) q).getScore(model);
-//                System.out.println(docid + ": " + score);
-                  r.add(docid, score);
-                  q.docIteratorAdvancePast(docid);
+                  r = evaluateQuery(q, model, k);
               }
-          }
-          return r;
-      } else
-          return null;
+              return r;
+          } else
+              return null;
+      } finally {
+          QryPlanCache.release(qString, model, q);
+      }
   }
 
   /**
-   *  Process the query file.
+   *  Process the query file.  If the threads parameter is greater than
+   *  1, queries are evaluated concurrently, but the results are still
+   *  written in the order of the query file.
    *  @param queryFilePath
    *  @param model
    *  @throws IOException Error accessing the Lucene index.
@@ -212,6 +336,11 @@ public class QryEval {
   static void processQueryFile(String queryFilePath, RetrievalModel model)
       throws IOException {
 
+    if(threads > 1) {
+        processQueryFileConcurrently(queryFilePath, model);
+        return;
+    }
+
 	BufferedReader input = null;
 
     try {
@@ -234,9 +363,9 @@ public class QryEval {
         ScoreList r = null;
 
         r = processQuery(Integer.parseInt(qid), query, model);
-        r.sort();
 
         if(r != null) {
+          r.sort();
           printResults(qid, r);
         }
       }
@@ -249,6 +378,99 @@ public class QryEval {
     }
   }
 
+  /**
+   *  Process the query file with a pool of worker threads.  Each query
+   *  has its own query tree and score list; the index, the posting
+   *  cache, and the retrieval model are shared.  Cached inverted lists
+   *  are only read, except for score bound statistics that are computed
+   *  when first requested (see InvList.getBlocks), which are volatile.
+   *  Results are printed by the calling thread in query file order, as
+   *  soon as the query and the queries before it are done.
+   *  @param queryFilePath
+   *  @param model
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void processQueryFileConcurrently(String queryFilePath, final RetrievalModel model)
+      throws IOException {
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<String> qids = new ArrayList<String>();
+    List<Future<ScoreList>> results = new ArrayList<Future<ScoreList>>();
+    BufferedReader input = null;
+
+    try {
+      String qLine = null;
+      input = new BufferedReader(new FileReader(queryFilePath));
+
+      //  Each pass of the loop submits one query.
+      while((qLine = input.readLine()) != null) {
+        int d = qLine.indexOf(':');
+
+        if(d < 0) {
+        	throw new IllegalArgumentException
+           ("Syntax error:  Missing ':' in query line.");
+        }
+
+        final String qid = qLine.substring(0, d);
+        final String query = qLine.substring(d + 1);
+
+        qids.add(qid);
+        results.add(pool.submit(new Callable<ScoreList>() {
+          public ScoreList call() throws IOException {
+            ScoreList r = processQuery(Integer.parseInt(qid), query, model);
+
+            if(r != null)
+              r.sort();
+            return r;
+          }
+        }));
+      }
+
+      //  Print the results in query file order.
+      for(int i = 0; i < results.size(); i++) {
+        ScoreList r = getResult(results.get(i));
+
+        if(r != null) {
+          printResults(qids.get(i), r);
+        }
+      }
+    }
+    catch(IOException ex) {
+    	ex.printStackTrace();
+    }
+    finally {
+    	pool.shutdownNow();
+    	input.close();
+    }
+  }
+
+  /**
+   *  Wait for a query to finish, and rethrow anything that it threw.
+   *  @param result The query result.
+   *  @return The score list of the query.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static ScoreList getResult(Future<ScoreList> result) throws IOException {
+    try {
+      return result.get();
+    }
+    catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a query.");
+    }
+    catch(ExecutionException ex) {
+      Throwable cause = ex.getCause();
+
+      if(cause instanceof IOException)
+        throw (IOException) cause;
+      if(cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if(cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    }
+  }
+
   /**
    * Print the query results.
    * 
@@ -278,11 +500,11 @@ public class QryEval {
 	   	 */
 	   	for(int i = 0; i < result.size() && i < outputLength; i++) {
 	   		System.out.println(String.format("%s %s %s %s haomingc_HW5", prefix,
-    		Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i)));
+    		result.getExternalDocid(i), i + 1, result.getDocidScore(i)));
 
 	    	// Write the results to the file in trec_eval format
 	    	writer.println(String.format("%s %s %s %s haomingc_HW5", prefix,
-	   		Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i)));
+	   		result.getExternalDocid(i), i + 1, result.getDocidScore(i)));
 	   	}
     }
     writer.close();
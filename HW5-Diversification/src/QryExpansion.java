@@ -72,7 +72,7 @@ public class QryExpansion {
 //        }
     }
 
-  public ScoreList getScoreList(int qid, Qry q, String originalQuery, RetrievalModelIndri model) throws IOException {
+  public ScoreList getScoreList(int qid, Qry q, String originalQuery, RetrievalModelIndri model, int k) throws IOException {
 
       // initialize parameter
       initialize(model, qid);
@@ -81,15 +81,8 @@ public class QryExpansion {
           this.r = model.getInitialRanking(this.qid);
           //System.out.println(model.getFilePath("fbInitialRankingFile"));
       } else {
-          this.r = new ScoreList();
-          q.initialize(model);
-
-          while (q.docIteratorHasMatch(model)) {
-              int docid = q.docIteratorGetMatch();
-              double score = ((QrySop) q).getScore(model);
-              this.r.add(docid, score);
-              q.docIteratorAdvancePast(docid);
-          }
+          // only the top fbDocs documents are used for expansion
+          this.r = QryEval.evaluateQuery(q, model, (int) this.fbDocs);
       }
       this.r.sort();
 
@@ -128,18 +121,21 @@ public class QryExpansion {
       String expandedQuery = String.format("#wand(%f %s %f %s)", originWeight, originalQuery, 1 - originWeight, learnedQuery);
 
       // run the expanded query to retrieve documents
-      return processQuery(expandedQuery);
+      return processQuery(expandedQuery, k);
   }
 
     /**
-     * write the query to file along with its id.
+     * write the query to file along with its id.  Queries may be expanded
+     * concurrently, so lines are written one at a time; their order may vary.
      * @param s A string that contains a query.
      * @throws IOException Error accessing the index
      */
     public void writeFile(String s) throws IOException{
-        PrintWriter writer = new PrintWriter(new FileWriter(this.outputPath, true));
-        writer.println(String.format("%d: %s", this.qid, s));
-        writer.close();
+        synchronized (QryExpansion.class) {
+            PrintWriter writer = new PrintWriter(new FileWriter(this.outputPath, true));
+            writer.println(String.format("%d: %s", this.qid, s));
+            writer.close();
+        }
     }
 
     /**
@@ -165,32 +161,29 @@ public class QryExpansion {
     /**
      * Process one query.
      * @param qString A string that contains a query.
+     * @param k The maximum number of documents to return.
      * @return Search results
      * @throws IOException Error accessing the index
      */
-    public ScoreList processQuery(String qString) throws IOException {
+    public ScoreList processQuery(String qString, int k) throws IOException {
 
         String defaultOp = this.model.defaultQrySopName();
         qString = defaultOp + "(" + qString + ")";
-        Qry q = QryParser.getQuery(qString);
-
-        if (q != null) {
-            ScoreList s = new ScoreList();
-
-            if (q.args.size() > 0) {        // Ignore empty queries
+        Qry q = QryPlanCache.acquire(qString, this.model);
 
-                q.initialize(this.model);
+        try {
+            if (q != null) {
+                ScoreList s = new ScoreList();
 
-                while (q.docIteratorHasMatch(this.model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(this.model);
-                    s.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+                if (q.args.size() > 0) {        // Ignore empty queries
+                    s = QryEval.evaluateQuery(q, this.model, k);
                 }
+                return s;
             }
-            return s;
+            else return null;
+        } finally {
+            QryPlanCache.release(qString, this.model, q);
         }
-        else return null;
     }
 
     /**
@@ -53,6 +53,12 @@ public abstract class QryIop extends Qry {
    */
   protected InvList invertedList = null;
 
+  /**
+   *  Identical query operators in a query tree share an inverted list
+   *  (see shareInvertedList), or null if the operator doesn't share.
+   */
+  private SharedInvList sharedInvList = null;
+
   /**
    *  The index of the document that the docIterator points to now.
    */
@@ -69,10 +75,11 @@ public abstract class QryIop extends Qry {
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvancePast(int docid) {
-	  while((this.docIteratorIndex < this.invertedList.df) &&
-			(this.invertedList.getDocid(this.docIteratorIndex) <= docid)) {
-		  this.docIteratorIndex++;
-	  }     
+	  if(docid == Integer.MAX_VALUE)
+		  this.docIteratorIndex = this.invertedList.df;
+	  else
+		  this.docIteratorIndex = QryIop.gallop(this.invertedList.docids,
+			  this.docIteratorIndex, this.invertedList.df, docid + 1);
 	  this.locIteratorIndex = 0;
   }
 
@@ -82,11 +89,23 @@ public abstract class QryIop extends Qry {
    *  @param docid The document's internal document id
    */
   public void docIteratorAdvanceTo(int docid) {
-	  while((this.docIteratorIndex < this.invertedList.df) &&
-            (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
-		  this.docIteratorIndex++;
-	  }     
+	  this.docIteratorIndex = QryIop.gallop(this.invertedList.docids,
+		  this.docIteratorIndex, this.invertedList.df, docid);
+	  this.locIteratorIndex = 0;
+  }
+
+  /**
+   *  Copy the docids of the next documents of the inverted list, and
+   *  advance the query operator's internal iterator past them.
+   *  @param docids Filled with up to docids.length docids, in order.
+   *  @return The number of docids, or 0 if there are no more documents.
+   */
+  public int docIteratorNextBlock(int[] docids) {
+	  int n = Math.min(docids.length, this.invertedList.df - this.docIteratorIndex);
+	  System.arraycopy(this.invertedList.docids, this.docIteratorIndex, docids, 0, n);
+	  this.docIteratorIndex += n;
 	  this.locIteratorIndex = 0;
+	  return n;
   }
 
   /**
@@ -94,7 +113,18 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish() {
-	  this.docIteratorIndex = this.invertedList.postings.size();
+	  this.docIteratorIndex = this.invertedList.df;
+  }
+
+  /**
+   *  Move the query operator's internal iterators back to the first
+   *  document, so that its matches can be read again without
+   *  evaluating the query operator again.  Operators that find their
+   *  matches on demand restart their arguments too.
+   */
+  protected void docIteratorRestart() {
+	  this.docIteratorIndex = 0;
+	  this.locIteratorIndex = 0;
   }
 
   /**
@@ -105,16 +135,17 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch() {
-	  return this.invertedList.getDocid(this.docIteratorIndex);
+	  return this.invertedList.docids[this.docIteratorIndex];
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.  Use docIteratorHasMatch to determine whether the
+   *  iterator currently points to a document.
+   *  @return The term frequency (tf) of the current document.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting() {
-	  return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf() {
+	  return this.invertedList.tfs[this.docIteratorIndex];
   }
 
   /**
@@ -126,6 +157,86 @@ public abstract class QryIop extends Qry {
 	  return(this.docIteratorIndex < this.invertedList.df);
   }
 
+  /**
+   *  Find the first element of a sorted array range that is at least
+   *  the target.  The search gallops forward from the start of the
+   *  range (1, 2, 4, 8, ... elements) and then binary searches the
+   *  last step, so its cost is logarithmic in the distance skipped
+   *  rather than linear.  Iterators usually move forward a short
+   *  distance, which this search handles in a few comparisons.
+   *  @param a An array sorted in ascending order.
+   *  @param from The first index of the range to search.
+   *  @param to The index after the last element of the range.
+   *  @param target The value to search for.
+   *  @return The index of the first element in [from, to) that is
+   *  greater than or equal to target, or to if there is none.
+   */
+  protected static int gallop(int[] a, int from, int to, int target) {
+
+    if((from >= to) || (a[from] >= target))
+    	return from;
+
+    //  Invariant:  a[lo] < target.  Double the step until a[hi] >= target.
+    int lo = from;
+    int step = 1;
+    int hi = (to - lo > step) ? lo + step : to;
+
+    while((hi < to) && (a[hi] < target)) {
+    	lo = hi;
+    	step <<= 1;
+    	hi = (to - lo > step) ? lo + step : to;
+    }
+
+    //  The answer is in (lo, hi].  Binary search for it.
+    lo++;
+
+    while(lo < hi) {
+    	int mid = (lo + hi) >>> 1;
+
+    	if(a[mid] < target)
+    		lo = mid + 1;
+    	else
+    		hi = mid;
+    }
+
+    return lo;
+  }
+
+  /**
+   *  Get the array that holds the locations of the document that the
+   *  docIterator points to now.  The locations are
+   *  docIteratorGetMatchTf elements that start at
+   *  docIteratorGetMatchPositionsOffset, in ascending order.  This
+   *  gives operators such as #NEAR/n primitive access to the locations
+   *  without the locIterator.  The array belongs to the query operator
+   *  and must not be modified.
+   *  @return The array that holds the locations.
+   */
+  public int[] docIteratorGetMatchPositions() {
+	  return this.invertedList.positions;
+  }
+
+  /**
+   *  Get the index of the first location of the document that the
+   *  docIterator points to now in the array returned by
+   *  docIteratorGetMatchPositions.
+   *  @return The index of the document's first location.
+   */
+  public int docIteratorGetMatchPositionsOffset() {
+	  return this.invertedList.positionOffsets[this.docIteratorIndex];
+  }
+
+  /**
+   *  Get the inverted list that the query operator evaluated to, for
+   *  callers that read postings by position rather than through the
+   *  iterators.  It is an error to call this method before the
+   *  object's initialize method is called.
+   *  @return The inverted list, or null if there isn't one.
+   */
+  public InvList getInvertedList() {
+    return this.invertedList;
+  }
+
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
@@ -146,6 +257,38 @@ public abstract class QryIop extends Qry {
 	  return this.invertedList.df;
   }
 
+  /**
+   *  Get the largest term frequency of the query operator's matches.
+   *  It is an error to call this method before the object's
+   *  initialize method is called.
+   *  @return The largest tf.
+   */
+  public int getMaxTf() {
+	  return this.invertedList.getMaxTf();
+  }
+
+  /**
+   *  Get the block-max metadata of the query operator's inverted list.
+   *  It is an error to call this method before the object's initialize
+   *  method is called.
+   *  @return The blocks, or null if they aren't available.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public BlockMaxIndex.Blocks getBlocks() throws IOException {
+	  return this.invertedList.getBlocks(Idx.getBlockSize());
+  }
+
+  /**
+   *  Get the shortest field length of the documents that the query
+   *  operator matches.  It is an error to call this method before the
+   *  object's initialize method is called.
+   *  @return The shortest field length, or 0 if it is unknown.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public int getMinFieldLength() throws IOException {
+	  return this.invertedList.getMinFieldLength();
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -161,6 +304,16 @@ public abstract class QryIop extends Qry {
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Use the inverted list of an identical query operator instead of
+   *  evaluating the query operator.  Subclasses that have other
+   *  evaluation state must reset it.
+   *  @param list The inverted list.
+   */
+  protected void evaluateShared (InvList list) {
+    this.invertedList = list;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
@@ -169,13 +322,25 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
-    for(Qry q_i: this.args) {
-        ((QryIop) q_i).initialize(r);
+    if((this.sharedInvList != null) && (this.sharedInvList.list != null)) {
+
+        //  An identical operator was already evaluated.  Its arguments
+        //  don't need to be initialized.
+        this.evaluateShared (this.sharedInvList.list);
     }
+    else {
+        //  Initialize the query arguments (if any).
+        for(Qry q_i: this.args) {
+            ((QryIop) q_i).initialize(r);
+        }
 
-    //  Evaluate the operator.
-    this.evaluate ();
+        //  Evaluate the operator.
+        this.evaluate ();
+
+        //  Operators that are evaluated lazily don't have a list to share.
+        if(this.sharedInvList != null)
+            this.sharedInvList.list = this.invertedList;
+    }
 
     //  Initialize the internal iterators.
     this.docIteratorIndex = 0;
@@ -196,13 +361,14 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast(int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.invertedList.tfs[this.docIteratorIndex];
+    int offset = this.invertedList.positionOffsets[this.docIteratorIndex];
 
-    while((this.locIteratorIndex < tf) &&
-          (positions.get(this.locIteratorIndex) <= loc)) {
-    		locIteratorIndex++;
-    }
+    if(loc == Integer.MAX_VALUE)
+    	this.locIteratorIndex = tf;
+    else
+    	this.locIteratorIndex = QryIop.gallop(this.invertedList.positions,
+    		offset + this.locIteratorIndex, offset + tf, loc + 1) - offset;
   }
 
   /**
@@ -211,7 +377,7 @@ public abstract class QryIop extends Qry {
    */
   public void locIteratorFinish() {
     this.locIteratorIndex =
-    	this.invertedList.postings.get(this.docIteratorIndex).tf;
+    	this.invertedList.tfs[this.docIteratorIndex];
   }
 
   /**
@@ -222,8 +388,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch() {
-	  Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-	  return locations.get(this.locIteratorIndex);
+	  return this.invertedList.positions[
+		  this.invertedList.positionOffsets[this.docIteratorIndex] + this.locIteratorIndex];
   }
 
   /**
@@ -233,7 +399,40 @@ public abstract class QryIop extends Qry {
    */
   public boolean locIteratorHasMatch() {
 	  return this.locIteratorIndex <
-			 this.invertedList.getTf(this.docIteratorIndex);
+			 this.invertedList.tfs[this.docIteratorIndex];
+  }
+
+  /**
+   *  Discard the inverted list and the shared inverted list, so that
+   *  the next initialization evaluates the query operator again.
+   */
+  public void reset() {
+    this.invertedList = null;
+    if(this.sharedInvList != null)
+        this.sharedInvList.list = null;
+    this.docIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
+    this.locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
+    super.reset();
+  }
+
+  /**
+   *  Share the inverted list of an identical query operator (the same
+   *  operator, field, and arguments).  Whichever is initialized first
+   *  evaluates the list, and the others use it; each keeps its own
+   *  iterators.
+   *  @param q An identical query operator.
+   */
+  public void shareInvertedList(QryIop q) {
+    if(q.sharedInvList == null)
+        q.sharedInvList = new SharedInvList();
+    this.sharedInvList = q.sharedInvList;
+  }
+
+  /**
+   *  The inverted list that identical query operators share.
+   */
+  private static final class SharedInvList {
+    InvList list = null;
   }
 
 }
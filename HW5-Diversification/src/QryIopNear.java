@@ -6,16 +6,55 @@ import java.util.*;
 
 /**
  *  The NEAR operator for all retrieval models.
+ *  <p>
+ *  #NEAR/n matches a location of its first argument when each of the
+ *  other arguments has a location after the previous argument's
+ *  location and at most n locations away.  Each argument location is
+ *  used by at most one match, and a match is recorded at the location
+ *  of the last argument.
+ *  </p><p>
+ *  The locations are read from primitive arrays (see
+ *  QryIop.docIteratorGetMatchPositions) and the matches are written to
+ *  a buffer that is reused for each document, so evaluation doesn't
+ *  allocate memory per document.  The location of each argument is
+ *  found by galloping forward from its previous location.
+ *  </p><p>
+ *  A #WINDOW with the same arguments, for example the unordered window
+ *  of a #SDM term pair, can be evaluated in the same pass (see
+ *  fuseWindow):  the documents that all arguments match are found once,
+ *  and both operators match the same location arrays, so the window's
+ *  inverted list, including its ctf, costs no extra pass over the
+ *  arguments.
+ *  </p>
  */
 public class QryIopNear extends QryIop {
-	
+
 	//  The distance constraint between arguments
 	private int distance;
 
+	//  The locations of the matches in the current document.  Reused
+	//  for each document.
+	private int[] matchPositions = new int[16];
+
+	//  A #WINDOW with the same arguments that is evaluated in the same
+	//  pass, or null.
+	private QryIopWindow fusedWindow = null;
+
 	public QryIopNear(String distance){
 		this.distance = Integer.parseInt(distance);
 	}
 
+	/**
+	 *  Evaluate a #WINDOW that has the same arguments in the same pass
+	 *  as this operator.  The window uses the inverted list if it hasn't
+	 *  been evaluated before this operator, and otherwise evaluates
+	 *  itself.
+	 *  @param window A #WINDOW with the same arguments.
+	 */
+	public void fuseWindow(QryIopWindow window) {
+		this.fusedWindow = window;
+	}
+
 	/**
 	 *  Evaluate the query operator; the result is an internal inverted
 	 *  list that may be accessed via the internal iterators.
@@ -26,122 +65,145 @@ public class QryIopNear extends QryIop {
 
 	    //  Create an empty inverted list. If there are no query arguments,
 	    //  that's the final result.
-	    
+
 	    this.invertedList = new InvList(this.getField());
-	    if(args.size() == 0) return;
-
-	    // Each pass of the loop adds 1 document to result inverted list
-	    // until all of the argument inverted lists are depleted.
-	    while(true) {
-	    	// First, find the next document id where all arguments exist 
-	    	// If there is none, we're done.
-	    	
-	    	boolean docMatchFound = false;
-	
-		    // Keep trying until all matches are found or no match is possible.
-		    while(!docMatchFound) {
-		
-	    		// Get the docid of the first query argument.
-	    		Qry q_0 = this.args.get(0);
-	    		if(!q_0.docIteratorHasMatch(null)) return;   // first argument exhausted
-	    		int docid_0 = q_0.docIteratorGetMatch();
-		
-	    		// Other query arguments must match the docid of the first query argument.
-	    		docMatchFound = true;
-		
-	    		for(int i = 1; i < this.args.size(); i++) {
-	    			Qry q_i = this.args.get(i);
-	    			q_i.docIteratorAdvanceTo(docid_0);
-	    			
-	    			if(!q_i.docIteratorHasMatch(null)) 		// If any argument is exhausted
-	    				return;								// there are no more matches.
-		
-	    			int docid_i = q_i.docIteratorGetMatch();
-	    			
-	    			if(docid_0 != docid_i) {					// docid_0 can't match. Try again.
-	    				q_0.docIteratorAdvanceTo(docid_i);
-//	    				System.out.println(q_0.docIteratorGetMatch());
-	    				docMatchFound = false;
-	    				break;
-	    			}
-	    		}
-	    		
-	    		// Secondly, find the positions that satisfy the constraint in the same doc
-	    		if(docMatchFound) {
-	    			// Create a new posting to record the location information				
-				   	List<Integer> positions = new ArrayList<Integer>();
-				   	
-	    			boolean moreLoc = true; // whether there're more locations to search			
-//	    	    	System.out.println("found a document");
-
-					// whether there're more potential locations to match in this document
-					while(moreLoc) {
-//		    	    	System.out.println("looking for positions of doc" + docid_0);
-		    	    	
-				    	boolean locMatchFound = false;
-				    	int prevElemLoc = -1;
-				    	
-				    	// keep trying until a match is found or no match is possible
-				    	while(!locMatchFound) {    	
-		    	    		// Get the locid of the first query argument.
-				    	 	QryIop loc_0 = (QryIop) q_0;
-				    	 	
-				    	 	// all locids have been processed. Done for this document
-				    	 	if(!loc_0.locIteratorHasMatch()) {
-//				    	 		System.out.println("1st elem exhausted!!");
-				    	 		moreLoc = false; 
-			    	 			locMatchFound = false;
-				    	 		break;
-				    	 	}  	
-				    	 	int locid_0 = loc_0.locIteratorGetMatch();
-// 			    	    	System.out.println("locations found: " + locid_0);
-				    	 	
-				    	 	locMatchFound = true;	// other positions must satisfy the proximity constraint
-				    	
-				    	 	prevElemLoc = locid_0;  // location of the previous element 
-				    	
-				    	 	for(int i = 1; i < this.args.size(); i++) {
-				    	 		QryIop loc_i = (QryIop) this.args.get(i);
-				    	 		
-				    	 		loc_i.locIteratorAdvancePast(prevElemLoc);
-	
-				    	 		if(!loc_i.locIteratorHasMatch()) {
-//					    	 		System.out.println("elem exhausted!!");
-				    	 			moreLoc = false;
-				    	 			prevElemLoc = -1;
-					    	 		break; 			// locations exhausted. Done
-				    	 		}
-				    	 		int locid_i = loc_i.locIteratorGetMatch();
-//				    	 		System.out.println("location for 2nd: " + locid_i);
-				    	 		
-				    	 		// location proximity doesn't match
-				    	 		if(locid_i - prevElemLoc > distance) {
-				    	 			loc_0.locIteratorAdvance();
-				    	 			locMatchFound = false;
-				    	 			break;
-				    	 		}
-//				    	 		System.out.println("successfully found a match seq!");
-				    	 		prevElemLoc = locid_i;
-				    	 	}
-				    	}
-				    	if(locMatchFound && prevElemLoc != -1) {
-//			    	 		System.out.println("add into list: " + prevElemLoc);
-				    		positions.add(prevElemLoc);  // add the matched location
-				    		for(Qry q_i: this.args) {
-				    			QryIop loc_i = (QryIop) q_i;
-				    	 		loc_i.locIteratorAdvancePast(loc_i.locIteratorGetMatch());
-				    		}
-				    	}
-	    			}
-//	    			System.out.println(positions.size());
-	    			if(positions.size() > 0) {
-		    			Collections.sort(positions);
-		    			this.invertedList.appendPosting(docid_0, positions);
-	    			}
+
+	    InvList windowList =
+	    	((this.fusedWindow == null) || !this.fusedWindow.acceptsFusedList()) ? null :
+	    	new InvList(this.fusedWindow.getField());
+
+	    if(args.size() == 0) {
+	    	if(windowList != null)
+	    		this.fusedWindow.setFusedList(windowList);
+	    	return;
+	    }
+
+	    int n = this.args.size();
+	    QryIop[] iops = new QryIop[n];
+
+	    for(int i = 0; i < n; i++)
+	    	iops[i] = (QryIop) this.args.get(i);
+
+	    //  The locations of each argument in the current document are
+	    //  locs[i][pos[i]] through locs[i][end[i] - 1].
+	    int[][] locs = new int[n][];
+	    int[] pos = new int[n];
+	    int[] end = new int[n];
+
+	    QryIop q_0 = iops[0];
+
+	    // Each pass of the loop tries 1 document, until an argument's
+	    // inverted list is depleted.
+	    documents:
+	    while(q_0.docIteratorHasMatch(null)) {
+
+	    	// First, find the next document id where all arguments exist.
+	    	int docid_0 = q_0.docIteratorGetMatch();
+	    	boolean docMatchFound = true;
+
+	    	for(int i = 1; i < n; i++) {
+	    		iops[i].docIteratorAdvanceTo(docid_0);
+
+	    		if(!iops[i].docIteratorHasMatch(null))		// If any argument is exhausted
+	    			break documents;						// there are no more matches.
+
+	    		int docid_i = iops[i].docIteratorGetMatch();
+
+	    		if(docid_0 != docid_i) {					// docid_0 can't match. Try again.
+	    			q_0.docIteratorAdvanceTo(docid_i);
+	    			docMatchFound = false;
+	    			break;
 	    		}
-	    		q_0.docIteratorAdvancePast(docid_0);
-    		}		
-		 }
+	    	}
+
+	    	if(!docMatchFound)
+	    		continue;
+
+	    	// Secondly, find the locations that satisfy the constraint.
+	    	for(int i = 0; i < n; i++) {
+	    		locs[i] = iops[i].docIteratorGetMatchPositions();
+	    		pos[i] = iops[i].docIteratorGetMatchPositionsOffset();
+	    		end[i] = pos[i] + iops[i].docIteratorGetMatchTf();
+	    	}
+
+	    	//  The window copies the location ranges, so it goes first.
+	    	if(windowList != null)
+	    		this.fusedWindow.appendFusedMatches(docid_0, locs, pos, end, windowList);
+
+	    	int tf = this.matchLocations(locs, pos, end);
+
+	    	if(tf > 0)
+	    		this.invertedList.appendPosting(docid_0, this.matchPositions, tf);
+
+	    	q_0.docIteratorAdvancePast(docid_0);
+	    }
+
+	    if(windowList != null)
+	    	this.fusedWindow.setFusedList(windowList);
+	}
+
+	/**
+	 *  Find the matches in a document that all of the arguments match.
+	 *  The matches are stored in matchPositions, in ascending order.
+	 *  @param locs The array of each argument's locations.
+	 *  @param pos The index of each argument's first location in locs.
+	 *  @param end The index after each argument's last location in locs.
+	 *  @return The number of matches.
+	 */
+	private int matchLocations(int[][] locs, int[] pos, int[] end) {
+
+		int n = locs.length;
+		int tf = 0;
+
+		//  Each match uses a location of the first argument, so there
+		//  are at most as many matches as first argument locations.
+		if(this.matchPositions.length < end[0] - pos[0])
+			this.matchPositions = new int[Math.max(end[0] - pos[0], 2 * this.matchPositions.length)];
+
+		while(pos[0] < end[0]) {
+
+			int prevElemLoc = locs[0][pos[0]];	// location of the previous element
+			int i;
+
+			for(i = 1; i < n; i++) {
+				pos[i] = QryIop.gallop(locs[i], pos[i], end[i], prevElemLoc + 1);
+
+				if(pos[i] == end[i])			// locations exhausted. Done
+					return tf;
+
+				int locid_i = locs[i][pos[i]];
+
+				if(locid_i - prevElemLoc > this.distance)
+					break;
+
+				prevElemLoc = locid_i;
+			}
+
+			if(i < n) {
+				//  The first argument's location is too far from the
+				//  next argument.  Locations of the first argument that
+				//  are more than distance before the second argument's
+				//  location can't match either, so skip them.
+				int target = (i == 1) ? locs[1][pos[1]] - this.distance : 0;
+				pos[0] = Math.max(pos[0] + 1, QryIop.gallop(locs[0], pos[0], end[0], target));
+				continue;
+			}
+
+			this.matchPositions[tf++] = prevElemLoc;	// add the matched location
+
+			for(int j = 0; j < n; j++)
+				pos[j] = QryIop.gallop(locs[j], pos[j], end[j], locs[j][pos[j]] + 1);
+		}
+
+		return tf;
+	}
+
+	/**
+	 *  Discard a match buffer that grew for a long document.
+	 */
+	public void reset() {
+		this.matchPositions = new int[16];
+		super.reset();
 	}
 
 }
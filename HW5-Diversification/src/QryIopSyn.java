@@ -6,9 +6,21 @@ import java.util.*;
 
 /**
  *  The SYN operator for all retrieval models.
+ *  <p>
+ *  The arguments' inverted lists are merged with a min-heap of the
+ *  arguments ordered by docid, so each posting costs O(log n) for n
+ *  arguments.  The locations of the arguments that match a document
+ *  are already sorted, so they are merged linearly into a buffer that
+ *  is reused for each document.  A location that occurs in several
+ *  arguments, for example in #SYN (apple apple), is recorded once.
+ *  </p>
  */
 public class QryIopSyn extends QryIop {
 
+  //  Location buffers for merging.  Reused for each document.
+  private int[] positions = new int[16];
+  private int[] mergeBuffer = new int[16];
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -18,51 +30,144 @@ public class QryIopSyn extends QryIop {
 
     //  Create an empty inverted list. If there are no query arguments,
     //  that's the final result.
-    
+
     this.invertedList = new InvList(this.getField());
 
     if(args.size() == 0) {
     		return;
     }
 
+    //  A min-heap of the arguments that aren't exhausted, ordered by
+    //  their current docids.
+    int n = this.args.size();
+    QryIop[] iops = new QryIop[n];
+    int[] heap = new int[n];
+    int[] heapDocids = new int[n];
+    int heapSize = 0;
+
+    for(int i = 0; i < n; i++) {
+    	iops[i] = (QryIop) this.args.get(i);
+
+    	if(iops[i].docIteratorHasMatch(null)) {
+    		heap[heapSize] = i;
+    		heapDocids[heapSize] = iops[i].docIteratorGetMatch();
+    		heapSize++;
+    	}
+    }
+
+    for(int i = heapSize / 2 - 1; i >= 0; i--)
+    	siftDown(heap, heapDocids, heapSize, i);
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
-    while (true) {
-    	//  Find the minimum next document id. If there is none, we're done.
-		int minDocid = Qry.INVALID_DOCID;
-	
-    	for(Qry q_i: this.args) {
-    		if(q_i.docIteratorHasMatch(null)) {
-    			int q_iDocid = q_i.docIteratorGetMatch();
-          
-    			if (minDocid > q_iDocid || minDocid == Qry.INVALID_DOCID) {
-    				minDocid = q_iDocid;
-    			}
-    		}
-    	}
-	
-    	// All docids have been processed. Done.
-    	if(minDocid == Qry.INVALID_DOCID) break;				
-	      
+    while(heapSize > 0) {
+    	//  The minimum next document id.
+    	int minDocid = heapDocids[0];
+    	int tf = 0;
+
     	//  Create a new posting that is the union of the posting lists
     	//  that match the minDocid. Save it.
-    	//  Note:	This implementation assumes that a location will not appear
-    	//  in two or more arguments. #SYN (apple apple) would break it.
-	
-    	List<Integer> positions = new ArrayList<Integer>();
-
-    	for(Qry q_i: this.args) {
-    		if(q_i.docIteratorHasMatch(null) && q_i.docIteratorGetMatch() == minDocid) {
-    			Vector<Integer> locations_i = 
-    				((QryIop) q_i).docIteratorGetMatchPosting().positions;
-    			positions.addAll(locations_i);
-    			q_i.docIteratorAdvancePast(minDocid);
+    	while((heapSize > 0) && (heapDocids[0] == minDocid)) {
+    		QryIop q_i = iops[heap[0]];
+
+    		tf = this.mergePositions(tf, q_i.docIteratorGetMatchPositions(),
+    		                         q_i.docIteratorGetMatchPositionsOffset(),
+    		                         q_i.docIteratorGetMatchTf());
+    		q_i.docIteratorAdvancePast(minDocid);
+
+    		if(q_i.docIteratorHasMatch(null)) {
+    			heapDocids[0] = q_i.docIteratorGetMatch();
+    		} else {							// Exhausted.  Remove it.
+    			heapSize--;
+    			heap[0] = heap[heapSize];
+    			heapDocids[0] = heapDocids[heapSize];
     		}
+    		siftDown(heap, heapDocids, heapSize, 0);
     	}
 
-    	Collections.sort(positions);
-    	this.invertedList.appendPosting(minDocid, positions);
+    	this.invertedList.appendPosting(minDocid, this.positions, tf);
 	}
   }
+
+  /**
+   *  Merge an argument's locations into the first tf entries of the
+   *  positions buffer.  Both are sorted; the result is sorted and
+   *  doesn't repeat locations.
+   *  @param tf The number of locations in the positions buffer.
+   *  @param locs The array that holds the argument's locations.
+   *  @param offset The index of the argument's first location in locs.
+   *  @param count The number of the argument's locations.
+   *  @return The number of locations in the positions buffer.
+   */
+  private int mergePositions(int tf, int[] locs, int offset, int count) {
+
+    if(this.mergeBuffer.length < tf + count) {
+    	this.mergeBuffer = new int[Math.max(tf + count, 2 * this.mergeBuffer.length)];
+    }
+
+    int[] out = this.mergeBuffer;
+    int size = 0;
+    int i = 0;
+    int j = offset;
+    int end = offset + count;
+
+    while((i < tf) || (j < end)) {
+    	int loc;
+
+    	if((j == end) || ((i < tf) && (this.positions[i] <= locs[j])))
+    		loc = this.positions[i++];
+    	else
+    		loc = locs[j++];
+
+    	if((size == 0) || (out[size - 1] != loc))
+    		out[size++] = loc;
+    }
+
+    //  The merged locations become the positions buffer.
+    this.mergeBuffer = this.positions;
+    this.positions = out;
+    return size;
+  }
+
+  /**
+   *  Move a heap entry toward the leaves until its docid is at most
+   *  the docids of its children.
+   *  @param heap Argument indexes.
+   *  @param heapDocids The current docid of each heap entry.
+   *  @param heapSize The number of heap entries.
+   *  @param i The index of the heap entry.
+   */
+  private static void siftDown(int[] heap, int[] heapDocids, int heapSize, int i) {
+
+    int arg = heap[i];
+    int docid = heapDocids[i];
+
+    while(true) {
+    	int child = 2 * i + 1;
+
+    	if(child >= heapSize)
+    		break;
+    	if((child + 1 < heapSize) && (heapDocids[child + 1] < heapDocids[child]))
+    		child++;
+    	if(heapDocids[child] >= docid)
+    		break;
+
+    	heap[i] = heap[child];
+    	heapDocids[i] = heapDocids[child];
+    	i = child;
+    }
+
+    heap[i] = arg;
+    heapDocids[i] = docid;
+  }
+
+  /**
+   *  Discard location buffers that grew for long documents.
+   */
+  public void reset() {
+    this.positions = new int[16];
+    this.mergeBuffer = new int[16];
+    super.reset();
+  }
 }
@@ -4,17 +4,44 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+
 /**
  *  The TERM operator for all retrieval models. The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie). Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
+ *  <p>
+ *  By default the term's inverted list is copied from the index when
+ *  the operator is initialized.  In lazy mode (see setLazyPostings)
+ *  the operator instead wraps the Lucene postings iterator:  the
+ *  docIterator is advanced by Lucene, locations are decoded only when
+ *  the locIterator is used, and df and ctf come from the index term
+ *  statistics.  Lazy mode avoids reading the parts of long inverted
+ *  lists that the query never visits.  The index statistics count
+ *  deleted documents, so df and ctf may differ slightly from the
+ *  materialized list if the index has deletions.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+	/**
+	 *  Whether terms initialized from now on read their postings lazily.
+	 */
+	private static boolean lazyPostings = false;
+
 	private String term;
 
+	//  Lazy mode state.  postings is null if the term is materialized.
+	private DocsAndPositionsEnum postings = null;
+	private int lazyDocid;
+	private int lazyDf, lazyCtf;
+	private int[] lazyLocations = new int[16];
+	private int lazyLocationsLength;	// -1 until the locations are decoded
+	private int lazyLocIteratorIndex;
+
 	/**
 	 *  The term is assumed to match the body field.
 	 *  @param termString A term string.
@@ -34,17 +61,318 @@ public class QryIopTerm extends QryIop {
 		this.field = fieldString;
 	}
 
+	/**
+	 *  Set whether terms read their postings lazily from the index
+	 *  instead of copying them into an inverted list.  The setting
+	 *  applies to terms initialized after the call.
+	 *  @param lazy True to read postings lazily.
+	 */
+	public static void setLazyPostings(boolean lazy) {
+		QryIopTerm.lazyPostings = lazy;
+	}
+
+	/**
+	 *  Get the term string.
+	 *  @return The processed (stemmed, lower-cased, etc) term string.
+	 */
+	public String getTerm() {
+		return this.term;
+	}
+
 	/**
     *  Evaluate the query operator; the result is an internal inverted
     *  list that may be accessed via the internal iterators.
     *  @throws IOException Error accessing the Lucene index.
     */
 	protected void evaluate() throws IOException {
-		this.invertedList = new InvList(this.term, this.field);
+		this.invertedList = Idx.getInvList(this.field, this.term);
+	}
+
+	/**
+	 *  Initialize the query operator, including its internal iterators;
+	 *  this method must be called before iteration can begin.
+	 *  @param r A retrieval model (that is ignored)
+	 *  @throws IOException Error accessing the Lucene index.
+	 */
+	public void initialize(RetrievalModel r) throws IOException {
+
+		if (! QryIopTerm.lazyPostings) {
+			this.postings = null;
+			super.initialize(r);
+			return;
+		}
+
+		this.lazyDf = Idx.getDocFreq(this.field, this.term);
+		this.lazyCtf = (this.lazyDf < 1) ? 0 :
+			(int) Math.min(Idx.getTotalTermFreq(this.field, this.term), Integer.MAX_VALUE);
+		this.postings = (this.lazyDf < 1) ? null :
+			Idx.getTermPositions(this.field, this.term);
+
+		if (this.postings == null) {	// The term doesn't occur.
+			super.initialize(r);
+			return;
+		}
+
+		this.lazyDocid = this.postings.nextDoc();
+		this.lazyLocationsLength = -1;
+		this.lazyLocIteratorIndex = 0;
+	}
+
+	//  --------------- Lazy docIterator ------------------------------
+
+	/**
+	 *  The Lucene iterator can't move backward, so a lazy term gets a
+	 *  new one.
+	 */
+	protected void docIteratorRestart() {
+		if (this.postings == null) {
+			super.docIteratorRestart();
+			return;
+		}
+
+		try {
+			this.postings = Idx.getTermPositions(this.field, this.term);
+			this.lazyDocid = this.postings.nextDoc();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		this.lazyLocationsLength = -1;
+		this.lazyLocIteratorIndex = 0;
+	}
+
+	/**
+	 *  Move the Lucene iterator to the first document whose id is at
+	 *  least the target, unless it is already there.
+	 *  @param target The target internal document id.
+	 */
+	private void lazyAdvance(int target) {
+		if (this.lazyDocid >= target)
+			return;
+
+		try {
+			this.lazyDocid = this.postings.advance(target);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		this.lazyLocationsLength = -1;
+		this.lazyLocIteratorIndex = 0;
+	}
+
+	/**
+	 *  Decode the locations of the current document, if they haven't
+	 *  been decoded yet.  Lucene delivers each location only once.
+	 */
+	private void lazyDecodeLocations() {
+		if (this.lazyLocationsLength >= 0)
+			return;
+
+		try {
+			int tf = this.postings.freq();
+
+			if (tf > this.lazyLocations.length)
+				this.lazyLocations = new int[Math.max(tf, 2 * this.lazyLocations.length)];
+
+			for (int j = 0; j < tf; j++)
+				this.lazyLocations[j] = this.postings.nextPosition();
+
+			this.lazyLocationsLength = tf;
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	public void docIteratorAdvancePast(int docid) {
+		if (this.postings == null) {
+			super.docIteratorAdvancePast(docid);
+		} else if (docid == Integer.MAX_VALUE) {
+			this.docIteratorFinish();
+		} else {
+			this.lazyAdvance(docid + 1);
+			this.lazyLocIteratorIndex = 0;
+		}
+	}
+
+	public void docIteratorAdvanceTo(int docid) {
+		if (this.postings == null) {
+			super.docIteratorAdvanceTo(docid);
+		} else {
+			this.lazyAdvance(docid);
+			this.lazyLocIteratorIndex = 0;
+		}
+	}
+
+	public void docIteratorFinish() {
+		if (this.postings == null) {
+			super.docIteratorFinish();
+		} else {
+			this.lazyDocid = DocIdSetIterator.NO_MORE_DOCS;
+		}
+	}
+
+	public int docIteratorGetMatch() {
+		return (this.postings == null) ? super.docIteratorGetMatch() : this.lazyDocid;
+	}
+
+	public int docIteratorGetMatchTf() {
+		if (this.postings == null)
+			return super.docIteratorGetMatchTf();
+
+		try {
+			return this.postings.freq();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	public boolean docIteratorHasMatch(RetrievalModel r) {
+		return (this.postings == null) ? super.docIteratorHasMatch(r) :
+			(this.lazyDocid != DocIdSetIterator.NO_MORE_DOCS);
+	}
+
+	public int getCtf() {
+		return (this.postings == null) ? super.getCtf() : this.lazyCtf;
+	}
+
+	public int getDf() {
+		return (this.postings == null) ? super.getDf() : this.lazyDf;
+	}
+
+	/**
+	 *  A lazy term decodes the locations of the current document into
+	 *  a buffer that is reused for each document.
+	 */
+	public int[] docIteratorGetMatchPositions() {
+		if (this.postings == null)
+			return super.docIteratorGetMatchPositions();
+
+		this.lazyDecodeLocations();
+		return this.lazyLocations;
+	}
+
+	public int docIteratorGetMatchPositionsOffset() {
+		return (this.postings == null) ? super.docIteratorGetMatchPositionsOffset() : 0;
+	}
+
+	/**
+	 *  A lazy term doesn't have an inverted list.
+	 */
+	public InvList getInvertedList() {
+		return (this.postings == null) ? super.getInvertedList() : null;
+	}
+
+	/**
+	 *  The blocks are read from the index's block-max sidecar file if it
+	 *  has them.  Otherwise a materialized term computes them from its
+	 *  inverted list, and a lazy term has none.
+	 */
+	public BlockMaxIndex.Blocks getBlocks() throws IOException {
+		BlockMaxIndex.Blocks blocks = Idx.getBlocks(this.field, this.term);
+
+		if ((blocks != null) || (this.postings != null))
+			return blocks;
+
+		return super.getBlocks();
+	}
+
+	/**
+	 *  In lazy mode the postings aren't read in advance, so the largest
+	 *  tf comes from the block-max sidecar file, or is unknown and the
+	 *  weakest bound is returned.
+	 */
+	public int getMaxTf() {
+		if (this.postings == null)
+			return super.getMaxTf();
+
+		BlockMaxIndex.Blocks blocks = Idx.getBlocks(this.field, this.term);
+
+		if (blocks == null)
+			return Integer.MAX_VALUE;
+
+		int max = 0;
+		for (int b = 0; b < blocks.size(); b++)
+			max = Math.max(max, blocks.maxTfs[b]);
+		return max;
+	}
+
+	/**
+	 *  In lazy mode the postings aren't read in advance, so the shortest
+	 *  field length comes from the block-max sidecar file, or is unknown
+	 *  and the weakest bound is returned.
+	 */
+	public int getMinFieldLength() throws IOException {
+		if (this.postings == null)
+			return super.getMinFieldLength();
+
+		BlockMaxIndex.Blocks blocks = Idx.getBlocks(this.field, this.term);
+
+		if (blocks == null)
+			return 0;
+
+		int min = Integer.MAX_VALUE;
+		for (int b = 0; b < blocks.size(); b++)
+			min = Math.min(min, blocks.minFieldLengths[b]);
+		return min;
+	}
+
+	//  --------------- Lazy locIterator ------------------------------
+
+	public void locIteratorAdvance() {
+		if (this.postings == null)
+			super.locIteratorAdvance();
+		else
+			this.lazyLocIteratorIndex++;
+	}
+
+	public void locIteratorAdvancePast(int loc) {
+		if (this.postings == null) {
+			super.locIteratorAdvancePast(loc);
+			return;
+		}
+
+		this.lazyDecodeLocations();
+
+		while ((this.lazyLocIteratorIndex < this.lazyLocationsLength) &&
+		       (this.lazyLocations[this.lazyLocIteratorIndex] <= loc)) {
+			this.lazyLocIteratorIndex++;
+		}
+	}
+
+	public void locIteratorFinish() {
+		if (this.postings == null) {
+			super.locIteratorFinish();
+		} else {
+			this.lazyDecodeLocations();
+			this.lazyLocIteratorIndex = this.lazyLocationsLength;
+		}
+	}
+
+	public int locIteratorGetMatch() {
+		if (this.postings == null)
+			return super.locIteratorGetMatch();
+
+		this.lazyDecodeLocations();
+		return this.lazyLocations[this.lazyLocIteratorIndex];
+	}
+
+	public boolean locIteratorHasMatch() {
+		if (this.postings == null)
+			return super.locIteratorHasMatch();
+
+		this.lazyDecodeLocations();
+		return this.lazyLocIteratorIndex < this.lazyLocationsLength;
+	}
+
+	/**
+	 *  Discard the Lucene iterator and the location buffer too.
+	 */
+	public void reset() {
+		this.postings = null;
+		this.lazyLocations = new int[16];
+		super.reset();
 	}
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
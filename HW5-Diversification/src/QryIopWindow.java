@@ -3,159 +3,605 @@
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+
+import org.apache.lucene.search.DocIdSetIterator;
 
 /**
  *  The Window operator for all retrieval models.
+ *  <p>
+ *  By default the operator's inverted list is computed when the
+ *  operator is initialized.  In lazy mode (see setLazyEvaluation) the
+ *  matching documents are found on demand, one document at a time, as
+ *  the docIterator advances, and the operator never stores an inverted
+ *  list.  df, ctf, and the largest tf, which BM25 and Indri need
+ *  before the first document is scored, are counted by a separate pass
+ *  over the arguments that doesn't store matches; the arguments are
+ *  then restarted (see QryIop.docIteratorRestart).  So lazy mode trades
+ *  a second matching pass for memory in ranked models.  Block-max
+ *  metadata and the shortest field length need the full inverted list,
+ *  so requesting them computes it, from the first document, whether or
+ *  not the docIterator has advanced.
+ *  </p>
  */
 public class QryIopWindow extends QryIop {
 
+	/**
+	 *  Whether windows initialized from now on are evaluated lazily.
+	 */
+	private static boolean lazyEvaluation = false;
+
+	//  A docid that means that the lazy docIterator hasn't searched for
+	//  the next match yet.
+	private static final int PENDING_DOCID = -1;
+
 	//  The distance constraint between arguments
 	private int distance;
 
+	//  The arguments, and the locations of each argument in the current
+	//  document, which are locs[i][pos[i]] through locs[i][end[i] - 1].
+	private QryIop[] iops;
+	private int[][] locs;
+	private int[] pos;
+	private int[] end;
+
+	//  A min-heap of argument indexes, ordered by current location (and
+	//  by argument index for equal locations).
+	private int[] heap;
+
+	//  The locations of the matches in the current document, and the
+	//  number of matches.  Reused for each document.
+	private int[] matchPositions = new int[16];
+	private int matchTf = 0;
+
+	//  The inverted list that a #NEAR with the same arguments computed
+	//  for the window (see QryIopNear.fuseWindow), or null.
+	private InvList fusedList = null;
+
+	//  Lazy mode state.  lazy is false if the window is materialized.
+	private boolean lazy = false;
+	private int lazyDocid;
+	private int lazyLocIteratorIndex;
+
+	//  The corpus statistics of a lazy window, or lazyDf < 0 if they
+	//  haven't been counted yet.
+	private int lazyDf = -1;
+	private int lazyCtf;
+	private int lazyMaxTf;
+
 	public QryIopWindow(String distance){
 		this.distance = Integer.parseInt(distance);
 	}
 
+	/**
+	 *  Set whether windows find their matching documents on demand
+	 *  instead of computing an inverted list when they are initialized.
+	 *  The setting applies to windows initialized after the call.
+	 *  @param lazy True to evaluate windows lazily.
+	 */
+	public static void setLazyEvaluation(boolean lazy) {
+		QryIopWindow.lazyEvaluation = lazy;
+	}
+
 	/**
 	 *  Evaluate the query operator; the result is an internal inverted
-	 *  list that may be accessed via the internal iterators.
+	 *  list that may be accessed via the internal iterators.  In lazy
+	 *  mode the iterators are only prepared.
      *
 	 *  Implementation:
      *  Consider #WINDOW/n(a b c). Iterates down the locations for a, b, c in parallel. Suppose the three iterators
      *  all start at the first location for each term. The window size that covers those 3 term occurrences is of size
      *  1 + Max(a.currentloc, b.currentloc, c.currentloc) - Min(a.currentloc, b.currentloc, c.currentloc). If the size
      *  is > N, advance the iterator that has the Min location. If the size is <= N, you have a match, and you advance
-     *  all 3 iterators. Continue until any iterator reaches the end of its location list.
+     *  all 3 iterators. Continue until any iterator reaches the end of its location list.  The iterators are kept
+     *  in a min-heap, so finding the Min location costs O(log n), and the Max location is updated as they advance.
 	 *
      *  @throws IOException Error accessing the Lucene index.
 	 *  @throws IllegalArgumentException invalid number of arguments for the NEAR operator
 	 */
 	protected void evaluate()throws IOException {
 
+	    int n = this.args.size();
+
+	    this.iops = new QryIop[n];
+	    this.locs = new int[n][];
+	    this.pos = new int[n];
+	    this.end = new int[n];
+	    this.heap = new int[n];
+
+	    for(int i = 0; i < n; i++)
+	    	this.iops[i] = (QryIop) this.args.get(i);
+
+	    //  A #NEAR with the same arguments may have computed the list.
+	    if(this.fusedList != null) {
+	    	this.lazy = false;
+	    	this.invertedList = this.fusedList;
+	    	this.fusedList = null;
+	    	return;
+	    }
+
+	    if(QryIopWindow.lazyEvaluation && n > 0) {
+	    	this.lazy = true;
+	    	this.invertedList = null;
+	    	this.lazyDocid = PENDING_DOCID;
+	    	this.lazyLocIteratorIndex = 0;
+	    	this.lazyDf = -1;
+	    	return;
+	    }
+
 	    //  Create an empty inverted list. If there are no query arguments,
 	    //  that's the final result.
-	    
+
+	    this.lazy = false;
 	    this.invertedList = new InvList(this.getField());
-	    if(args.size() == 0) return;
+	    if(n == 0) return;
 
 	    // Each pass of the loop adds 1 document to result inverted list
-	    // until all of the argument inverted lists are depleted.
-	    while(true) {
-	    	// First, find the next document id where all arguments exist 
-	    	// If there is none, we're done.
-	    	
-	    	boolean docMatchFound = false;
-	
-		    // Keep trying until all matches are found or no match is possible.
-		    while(!docMatchFound) {
-		
-	    		// Get the docid of the first query argument.
-	    		Qry q_0 = this.args.get(0);
-	    		if(!q_0.docIteratorHasMatch(null)) return;   // first argument exhausted
-	    		int docid_0 = q_0.docIteratorGetMatch();
-		
-	    		// Other query arguments must match the docid of the first query argument.
-	    		docMatchFound = true;
-		
-	    		for(int i = 1; i < this.args.size(); i++) {
-	    			Qry q_i = this.args.get(i);
-	    			q_i.docIteratorAdvanceTo(docid_0);
-	    			
-	    			if(!q_i.docIteratorHasMatch(null)) 		// If any argument is exhausted
-	    				return;								// there are no more matches.
-		
-	    			int docid_i = q_i.docIteratorGetMatch();
-	    			
-	    			if(docid_0 != docid_i) {					// docid_0 can't match. Try again.
-	    				q_0.docIteratorAdvanceTo(docid_i);
-//	    				System.out.println(q_0.docIteratorGetMatch());
-	    				docMatchFound = false;
-	    				break;
-	    			}
-	    		}
-	    		
-	    		// Secondly, find the positions that satisfy the constraint in the same doc
-	    		if(docMatchFound) {
-	    			// Create a new posting to record the location information				
-				   	List<Integer> positions = new ArrayList<Integer>();
-				   	
-	    			boolean moreLoc = true; // whether there're more locations to search			
-//	    	    	System.out.println("found a document");
-
-                    // whether there're more potential locations to match in this document
-	    			while(moreLoc) {
-//		    	    	System.out.println("looking for positions of doc" + docid_0);
-		    	    	
-				    	boolean locMatchFound = false;
-                        int maxLoc = -1, minLoc = -1;    // initialize min & max location of all arguments
-                        QryIop minLocIte = null;      // record the argument that has the smallest location
-
-                        // keep trying until a match is found or no match is possible
-				    	while(!locMatchFound) {    	
-		    	    		// Get the locid of the first query argument.
-				    	 	QryIop loc_0 = (QryIop) q_0;
-				    	 	
-				    	 	// all locids have been processed. Done for this document
-				    	 	if(!loc_0.locIteratorHasMatch()) {
-//				    	 		System.out.println("1st elem exhausted!!");
-				    	 		moreLoc = false; 
-				    	 		break;
-				    	 	}
-                            maxLoc = minLoc = loc_0.locIteratorGetMatch();  // use first argument's location
-                            minLocIte = loc_0;
-// 			    	    	System.out.println("locations found: " + loc_0);
-				    	 	
-				    	 	locMatchFound = true;	// other positions must satisfy the proximity constraint
-
-				    	 	for(int i = 1; i < this.args.size(); i++) {
-                                QryIop loc_i = (QryIop) this.args.get(i);
-
-                                if (!loc_i.locIteratorHasMatch()) {
-//                                    System.out.println((i + 1) + "th elem exhausted!!");
-                                    moreLoc = false;
-                                    maxLoc = -1;       // mark that element exhausted
-                                    break;             // locations exhausted for this argument. Done
-                                }
-                                int locid_i = loc_i.locIteratorGetMatch();
-                                maxLoc = Math.max(locid_i, maxLoc);
-                                if (minLoc > locid_i) {
-                                    minLoc = locid_i;
-                                    minLocIte = loc_i;
-                                }
-//                                System.out.println("location for 2nd: " + locid_i);
-                            }
-				    	}
-                        if(locMatchFound && maxLoc != -1){
-                            // location window constraint doesn't match
-                            if(maxLoc - minLoc + 1 > distance) {
-//                                System.out.println(String.format("minLoc=%d, maxLoc=%d, window=%d", minLoc, maxLoc, distance));
-//                                System.out.println("failed to satisfy window, move on");
-                                minLocIte.locIteratorAdvance();
-                            }
-                            else{
-//                                System.out.println("successfully found a match seq!");
-//                                System.out.println("add into list: " + maxLoc);
-                                positions.add(maxLoc);  // add the matched location
-                                for(Qry q_i: this.args) {
-                                    QryIop loc_i = (QryIop) q_i;
-                                    loc_i.locIteratorAdvancePast(loc_i.locIteratorGetMatch());
-                                }
-                            }
-                        }
-
-	    			}
-//	    			System.out.println(String.format("Found %d locations", positions.size()));
-	    			if(positions.size() > 0) {
-		    			Collections.sort(positions);
-		    			this.invertedList.appendPosting(docid_0, positions);
-	    			}
-	    		}
-	    		q_0.docIteratorAdvancePast(docid_0);
-    		}		
-		 }
+	    // until an argument's inverted list is depleted.
+	    for(int docid = this.nextMatch();
+	        docid != DocIdSetIterator.NO_MORE_DOCS;
+	        docid = this.nextMatch()) {
+	    	this.invertedList.appendPosting(docid, this.matchPositions, this.matchTf);
+	    }
+	}
+
+	/**
+	 *  Find the next document where the arguments satisfy the window
+	 *  constraint, starting from the arguments' current documents.  The
+	 *  document's matches are stored in matchPositions and matchTf, and
+	 *  the first argument's docIterator is advanced past the document.
+	 *  @return The document's internal docid, or NO_MORE_DOCS if there
+	 *  are no more matches.
+	 */
+	private int nextMatch() {
+
+		int n = this.iops.length;
+		QryIop q_0 = this.iops[0];
+
+		while(q_0.docIteratorHasMatch(null)) {
+
+	    	// First, find the next document id where all arguments exist.
+			int docid_0 = q_0.docIteratorGetMatch();
+			boolean docMatchFound = true;
+
+			for(int i = 1; i < n; i++) {
+				this.iops[i].docIteratorAdvanceTo(docid_0);
+
+				if(!this.iops[i].docIteratorHasMatch(null))		// If any argument is exhausted
+					return DocIdSetIterator.NO_MORE_DOCS;		// there are no more matches.
+
+				int docid_i = this.iops[i].docIteratorGetMatch();
+
+				if(docid_0 != docid_i) {						// docid_0 can't match. Try again.
+					q_0.docIteratorAdvanceTo(docid_i);
+					docMatchFound = false;
+					break;
+				}
+			}
+
+			if(!docMatchFound)
+				continue;
+
+	    	// Secondly, find the locations that satisfy the constraint.
+			for(int i = 0; i < n; i++) {
+				this.locs[i] = this.iops[i].docIteratorGetMatchPositions();
+				this.pos[i] = this.iops[i].docIteratorGetMatchPositionsOffset();
+				this.end[i] = this.pos[i] + this.iops[i].docIteratorGetMatchTf();
+			}
+
+			this.matchTf = this.matchLocations();
+			q_0.docIteratorAdvancePast(docid_0);
+
+			if(this.matchTf > 0)
+				return docid_0;
+		}
+
+		return DocIdSetIterator.NO_MORE_DOCS;
+	}
+
+	/**
+	 *  Find the matches of the window in a document for a #NEAR that has
+	 *  the same arguments and is evaluated in the same pass (see
+	 *  QryIopNear.fuseWindow), and append them to an inverted list.  The
+	 *  location ranges are copied, so the caller's aren't changed.
+	 *  @param docid The internal document id.
+	 *  @param locs The array of each argument's locations.
+	 *  @param pos The index of each argument's first location in locs.
+	 *  @param end The index after each argument's last location in locs.
+	 *  @param list The inverted list that the matches are appended to.
+	 */
+	void appendFusedMatches(int docid, int[][] locs, int[] pos, int[] end, InvList list) {
+
+		int n = locs.length;
+
+		if((this.locs == null) || (this.locs.length != n)) {
+			this.locs = new int[n][];
+			this.pos = new int[n];
+			this.end = new int[n];
+			this.heap = new int[n];
+		}
+
+		for(int i = 0; i < n; i++) {
+			this.locs[i] = locs[i];
+			this.pos[i] = pos[i];
+			this.end[i] = end[i];
+		}
+
+		int tf = this.matchLocations();
+
+		if(tf > 0)
+			list.appendPosting(docid, this.matchPositions, tf);
+	}
+
+	/**
+	 *  Indicates whether the window hasn't been evaluated since it was
+	 *  created or reset, so a #NEAR with the same arguments may compute
+	 *  its inverted list (see QryIopNear.fuseWindow).
+	 *  @return True if the window hasn't been evaluated.
+	 */
+	boolean acceptsFusedList() {
+		return (this.invertedList == null) && !this.lazy;
+	}
+
+	/**
+	 *  Use an inverted list that a #NEAR with the same arguments
+	 *  computed for the window (see QryIopNear.fuseWindow) when the
+	 *  window is next evaluated.
+	 *  @param list The window's inverted list.
+	 */
+	void setFusedList(InvList list) {
+		this.fusedList = list;
+	}
+
+	/**
+	 *  Find the matches in a document that all of the arguments match.
+	 *  The matches are stored in matchPositions, in ascending order.
+	 *  @return The number of matches.
+	 */
+	private int matchLocations() {
+
+		int n = this.locs.length;
+		int tf = 0;
+
+		//  Each match uses a location of the first argument, so there
+		//  are at most as many matches as first argument locations.
+		if(this.matchPositions.length < this.end[0] - this.pos[0])
+			this.matchPositions = new int[Math.max(this.end[0] - this.pos[0], 2 * this.matchPositions.length)];
+
+		int maxLoc = this.buildHeap();
+
+		while(true) {
+			int minArg = this.heap[0];
+			int minLoc = this.locs[minArg][this.pos[minArg]];
+
+			if(maxLoc - minLoc + 1 > this.distance) {
+				//  Location window constraint doesn't match.  No window
+				//  can match until the Min location is at least
+				//  maxLoc - distance + 1, so skip to it.
+				this.pos[minArg] = QryIop.gallop(this.locs[minArg], this.pos[minArg],
+					this.end[minArg], maxLoc - this.distance + 1);
+
+				if(this.pos[minArg] == this.end[minArg])	// locations exhausted. Done
+					return tf;
+
+				maxLoc = Math.max(maxLoc, this.locs[minArg][this.pos[minArg]]);
+				this.heapSiftDown(0);
+			}
+			else {
+				this.matchPositions[tf++] = maxLoc;			// add the matched location
+
+				for(int i = 0; i < n; i++) {
+					this.pos[i] = QryIop.gallop(this.locs[i], this.pos[i], this.end[i],
+						this.locs[i][this.pos[i]] + 1);
+
+					if(this.pos[i] == this.end[i])
+						return tf;
+				}
+
+				maxLoc = this.buildHeap();
+			}
+		}
+	}
+
+	/**
+	 *  Put all of the arguments in the heap.  Each argument must have a
+	 *  current location.
+	 *  @return The largest current location of the arguments.
+	 */
+	private int buildHeap() {
+
+		int n = this.locs.length;
+		int maxLoc = Integer.MIN_VALUE;
+
+		for(int i = 0; i < n; i++) {
+			this.heap[i] = i;
+			maxLoc = Math.max(maxLoc, this.locs[i][this.pos[i]]);
+		}
+
+		for(int i = n / 2 - 1; i >= 0; i--)
+			this.heapSiftDown(i);
+
+		return maxLoc;
+	}
+
+	/**
+	 *  Move a heap entry toward the leaves until it is before its
+	 *  children.
+	 *  @param i The index of the heap entry.
+	 */
+	private void heapSiftDown(int i) {
+
+		int n = this.locs.length;
+		int arg = this.heap[i];
+
+		while(true) {
+			int child = 2 * i + 1;
+
+			if(child >= n)
+				break;
+			if((child + 1 < n) && this.heapBefore(this.heap[child + 1], this.heap[child]))
+				child++;
+			if(!this.heapBefore(this.heap[child], arg))
+				break;
+
+			this.heap[i] = this.heap[child];
+			i = child;
+		}
+
+		this.heap[i] = arg;
+	}
+
+	/**
+	 *  The heap order:  by current location, and then by argument index.
+	 *  @param a An argument index.
+	 *  @param b An argument index.
+	 *  @return True if argument a is before argument b.
+	 */
+	private boolean heapBefore(int a, int b) {
+		int locA = this.locs[a][this.pos[a]];
+		int locB = this.locs[b][this.pos[b]];
+		return (locA < locB) || ((locA == locB) && (a < b));
+	}
+
+	/**
+	 *  Discard the references to the arguments' location arrays, and a
+	 *  match buffer that grew for a long document.
+	 */
+	public void reset() {
+		this.iops = null;
+		this.locs = null;
+		this.pos = null;
+		this.end = null;
+		this.heap = null;
+		this.matchPositions = new int[16];
+		this.fusedList = null;
+		this.lazy = false;
+		this.lazyDf = -1;
+		super.reset();
+	}
+
+	/**
+	 *  A window that uses a shared inverted list isn't lazy.
+	 */
+	protected void evaluateShared(InvList list) {
+		this.lazy = false;
+		this.fusedList = null;
+		super.evaluateShared(list);
+	}
+
+	//  --------------- Lazy evaluation -------------------------------
+
+	/**
+	 *  Find the first matching document whose id is at least the
+	 *  target, unless the docIterator is already there.
+	 *  @param target The target internal document id.
+	 */
+	private void lazyAdvance(int target) {
+		if((this.lazyDocid != PENDING_DOCID) && (this.lazyDocid >= target))
+			return;
+
+		this.iops[0].docIteratorAdvanceTo(target);
+		this.lazyDocid = this.nextMatch();
+		this.lazyLocIteratorIndex = 0;
+	}
+
+	/**
+	 *  Restart a lazy window and its arguments from the first document.
+	 */
+	protected void docIteratorRestart() {
+		if(!this.lazy) {
+			super.docIteratorRestart();
+			return;
+		}
+
+		for(QryIop q_i : this.iops)
+			q_i.docIteratorRestart();
+
+		this.lazyDocid = PENDING_DOCID;
+		this.lazyLocIteratorIndex = 0;
+	}
+
+	/**
+	 *  Count the corpus statistics of a lazy window in a pass over all
+	 *  of the arguments' documents, and then return the docIterator and
+	 *  locIterator to where they were.
+	 */
+	private void countStatistics() {
+		if(!this.lazy || (this.lazyDf >= 0))
+			return;
+
+		int docid = this.lazyDocid;
+		int locIteratorIndex = this.lazyLocIteratorIndex;
+		int df = 0;
+		long ctf = 0;
+		int maxTf = 0;
+
+		this.docIteratorRestart();
+
+		for(int d = this.nextMatch(); d != DocIdSetIterator.NO_MORE_DOCS; d = this.nextMatch()) {
+			df++;
+			ctf += this.matchTf;
+			maxTf = Math.max(maxTf, this.matchTf);
+		}
+
+		this.lazyDf = df;
+		this.lazyCtf = (int) Math.min(ctf, Integer.MAX_VALUE);
+		this.lazyMaxTf = maxTf;
+
+		this.docIteratorRestart();
+
+		if(docid == DocIdSetIterator.NO_MORE_DOCS)
+			this.lazyDocid = DocIdSetIterator.NO_MORE_DOCS;
+		else if(docid != PENDING_DOCID) {
+			this.lazyAdvance(docid);
+			this.lazyLocIteratorIndex = locIteratorIndex;
+		}
+	}
+
+	/**
+	 *  Compute the whole inverted list of a lazy window, restarting the
+	 *  arguments from the first document.  The docIterator and
+	 *  locIterator stay where they were.
+	 */
+	private void materialize() {
+		if(!this.lazy)
+			return;
+
+		int docid = this.lazyDocid;
+		int locIteratorIndex = this.lazyLocIteratorIndex;
+
+		this.docIteratorRestart();
+		this.invertedList = new InvList(this.getField());
+
+		for(int d = this.nextMatch(); d != DocIdSetIterator.NO_MORE_DOCS; d = this.nextMatch())
+			this.invertedList.appendPosting(d, this.matchPositions, this.matchTf);
+
+		this.lazy = false;
+		super.docIteratorRestart();
+
+		if(docid == DocIdSetIterator.NO_MORE_DOCS)
+			super.docIteratorFinish();
+		else if(docid != PENDING_DOCID) {
+			super.docIteratorAdvanceTo(docid);
+			for(int i = 0; i < locIteratorIndex; i++)
+				super.locIteratorAdvance();
+		}
+	}
+
+	public void docIteratorAdvancePast(int docid) {
+		if(!this.lazy)
+			super.docIteratorAdvancePast(docid);
+		else if(docid == Integer.MAX_VALUE)
+			this.docIteratorFinish();
+		else
+			this.lazyAdvance(docid + 1);
+	}
+
+	public void docIteratorAdvanceTo(int docid) {
+		if(!this.lazy)
+			super.docIteratorAdvanceTo(docid);
+		else
+			this.lazyAdvance(docid);
+	}
+
+	public void docIteratorFinish() {
+		if(!this.lazy)
+			super.docIteratorFinish();
+		else
+			this.lazyDocid = DocIdSetIterator.NO_MORE_DOCS;
+	}
+
+	public int docIteratorGetMatch() {
+		return (!this.lazy) ? super.docIteratorGetMatch() : this.lazyDocid;
+	}
+
+	public int docIteratorGetMatchTf() {
+		return (!this.lazy) ? super.docIteratorGetMatchTf() : this.matchTf;
+	}
+
+	public boolean docIteratorHasMatch(RetrievalModel r) {
+		if(!this.lazy)
+			return super.docIteratorHasMatch(r);
+
+		this.lazyAdvance(0);
+		return this.lazyDocid != DocIdSetIterator.NO_MORE_DOCS;
+	}
+
+	public int[] docIteratorGetMatchPositions() {
+		return (!this.lazy) ? super.docIteratorGetMatchPositions() : this.matchPositions;
+	}
+
+	public int docIteratorGetMatchPositionsOffset() {
+		return (!this.lazy) ? super.docIteratorGetMatchPositionsOffset() : 0;
+	}
+
+	/**
+	 *  A lazy window doesn't have an inverted list.
+	 */
+	public InvList getInvertedList() {
+		return (!this.lazy) ? super.getInvertedList() : null;
+	}
+
+	public int getCtf() {
+		this.countStatistics();
+		return (!this.lazy) ? super.getCtf() : this.lazyCtf;
+	}
+
+	public int getDf() {
+		this.countStatistics();
+		return (!this.lazy) ? super.getDf() : this.lazyDf;
+	}
+
+	public int getMaxTf() {
+		this.countStatistics();
+		return (!this.lazy) ? super.getMaxTf() : this.lazyMaxTf;
+	}
+
+	public BlockMaxIndex.Blocks getBlocks() throws IOException {
+		this.materialize();
+		return super.getBlocks();
+	}
+
+	public int getMinFieldLength() throws IOException {
+		this.materialize();
+		return super.getMinFieldLength();
+	}
+
+	//  --------------- Lazy locIterator ------------------------------
+
+	public void locIteratorAdvance() {
+		if(!this.lazy)
+			super.locIteratorAdvance();
+		else
+			this.lazyLocIteratorIndex++;
+	}
+
+	public void locIteratorAdvancePast(int loc) {
+		if(!this.lazy) {
+			super.locIteratorAdvancePast(loc);
+			return;
+		}
+
+		while((this.lazyLocIteratorIndex < this.matchTf) &&
+		      (this.matchPositions[this.lazyLocIteratorIndex] <= loc)) {
+			this.lazyLocIteratorIndex++;
+		}
+	}
+
+	public void locIteratorFinish() {
+		if(!this.lazy)
+			super.locIteratorFinish();
+		else
+			this.lazyLocIteratorIndex = this.matchTf;
+	}
+
+	public int locIteratorGetMatch() {
+		return (!this.lazy) ? super.locIteratorGetMatch() :
+			this.matchPositions[this.lazyLocIteratorIndex];
+	}
+
+	public boolean locIteratorHasMatch() {
+		return (!this.lazy) ? super.locIteratorHasMatch() :
+			(this.lazyLocIteratorIndex < this.matchTf);
 	}
 
 }
@@ -0,0 +1,335 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Top-k document-at-a-time query evaluation with MaxScore dynamic
+ *  pruning (Turtle and Flood, 1995).
+ *  <p>
+ *  Each argument of the query operator has a score upper bound (see
+ *  QrySop.getMaxScore).  The arguments are sorted by their bounds.
+ *  Once the top k list is full, the arguments with the smallest bounds
+ *  whose bounds add up to less than the score of the k'th document
+ *  are <i>non-essential</i>:  a document that matches only
+ *  non-essential arguments can't enter the top k, so candidate
+ *  documents are drawn only from the essential arguments.  A candidate
+ *  is abandoned as soon as its partial score plus the bounds of the
+ *  non-essential arguments not yet checked can't reach the k'th score.
+ *  Non-essential arguments are advanced directly to the candidate,
+ *  skipping the documents in between.
+ *  </p><p>
+ *  BM25 #SUM scores are sums of the argument scores, so the bounds are
+ *  added directly.  Indri #AND and #WAND scores are weighted geometric
+ *  means, and an argument that doesn't match a document still
+ *  contributes its default score, so the bounds are kept as logarithms:
+ *  a document's bound is the bound of a document that matches no
+ *  argument (see QrySop.getMaxDefaultScore) plus, for each argument
+ *  that it matches, how much more that argument can contribute.
+ *  </p><p>
+ *  Arguments that have block-max metadata (see BlockMaxIndex) also
+ *  bound the score of each block of their postings.  If the block
+ *  bounds of the blocks that contain a candidate add up to less than
+ *  the k'th score, no document before the end of the shortest of
+ *  those blocks can enter the top k, and the essential arguments skip
+ *  to the next block.
+ *  </p><p>
+ *  The scores of the documents that are kept are computed exactly as
+ *  the query operator would compute them, so the top k documents and
+ *  their scores are the same as with exhaustive evaluation.
+ *  </p>
+ */
+public class QryMaxScore {
+
+  /**
+   *  Pruning decisions compare sums of bounds that are added in a
+   *  different order than document scores, so they allow for rounding
+   *  error of this relative size.
+   */
+  private static final double SLACK = 1e-9;
+
+  /**
+   *  Indicates whether a query can be evaluated with MaxScore.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated with MaxScore.
+   */
+  public static boolean supports(Qry q, RetrievalModel r) {
+    if (q.args.size() == 0)
+      return false;
+
+    if (r instanceof RetrievalModelBM25)
+      return (q instanceof QrySopSum);
+
+    if ((r instanceof RetrievalModelIndri) &&
+        ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd))) {
+
+      //  Nested operators don't have score bounds.
+      for (Qry q_i : q.args) {
+        if (! (q_i instanceof QrySopScore))
+          return false;
+      }
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   *  Evaluate a query and return its top k documents.
+   *  @param q The query.  It must be supported (see supports).
+   *  @param r The retrieval model.
+   *  @param k The maximum number of documents to return.
+   *  @return Search results, in no particular order until sorted.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static ScoreList evaluate(QrySop q, RetrievalModel r, int k) throws IOException {
+
+    ScoreList results = new ScoreList(k);
+    q.initialize(r);
+
+    boolean indri = (r instanceof RetrievalModelIndri);
+    int n = q.args.size();
+
+    //  Indri bounds are weighted logarithms, measured from the bound
+    //  of a document that matches no argument (base).
+    double[] exponents = new double[n];
+    double[] defaultBounds = new double[n];
+    double base = 0.0;
+
+    if (indri) {
+      exponents = getExponents(q);
+
+      for (int i = 0; i < n; i++) {
+        QrySop q_i = (QrySop) q.args.get(i);
+        defaultBounds[i] = exponents[i] * Math.log(q_i.getMaxDefaultScore(r));
+        base += defaultBounds[i];
+      }
+    }
+
+    //  Sort the arguments by their score upper bounds.
+    final double[] argBounds = new double[n];
+    Integer[] order = new Integer[n];
+
+    for (int i = 0; i < n; i++) {
+      double bound = ((QrySop) q.args.get(i)).getMaxScore(r);
+      argBounds[i] = indri ? getContributionBound(bound, exponents[i], defaultBounds[i]) : bound;
+      order[i] = i;
+    }
+
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer i, Integer j) {
+        return Double.compare(argBounds[i], argBounds[j]);
+      }
+    });
+
+    QrySop[] args = new QrySop[n];	// arguments in bound order
+    int[] argIndex = new int[n];	// their positions in q.args
+    double[] cumBounds = new double[n];	// cumBounds[j] = base + sum of bounds 0..j
+
+    for (int j = 0; j < n; j++) {
+      argIndex[j] = order[j];
+      args[j] = (QrySop) q.args.get(order[j]);
+      cumBounds[j] = argBounds[order[j]] + ((j > 0) ? cumBounds[j - 1] : base);
+    }
+
+    //  A term that doesn't occur in the collection has an Indri default
+    //  score of 0, and so does every document.  Without finite bounds,
+    //  or with a negative weight, nothing is pruned.
+    boolean bounded = ! (Double.isNaN(cumBounds[n - 1]) || Double.isInfinite(base));
+
+    for (int i = 0; i < n; i++)
+      bounded &= (exponents[i] >= 0.0);
+
+    //  Argument scores for the current document, by position in q.args.
+    double[] argScores = new double[n];
+    boolean[] argMatches = new boolean[n];
+
+    double threshold = Double.NEGATIVE_INFINITY;
+    int firstEssential = 0;
+
+    while (true) {
+
+      //  The next candidate is the smallest docid of an essential argument.
+      int docid = Integer.MAX_VALUE;
+
+      for (int j = firstEssential; j < n; j++) {
+        if (args[j].docIteratorHasMatch(r))
+          docid = Math.min(docid, args[j].docIteratorGetMatch());
+      }
+
+      if (docid == Integer.MAX_VALUE)
+        break;
+
+      //  Skip the candidate's blocks if they can't reach the threshold.
+      if (threshold > Double.NEGATIVE_INFINITY) {
+        double blockBound = base;
+        int blockEnd = Integer.MAX_VALUE;
+
+        for (int j = 0; j < n; j++) {
+          double bound = args[j].getBlockMaxScore(r, docid);
+          blockBound += indri ? getContributionBound(bound, exponents[argIndex[j]], defaultBounds[argIndex[j]]) : bound;
+          blockEnd = Math.min(blockEnd, args[j].getBlockLastDocid());
+        }
+
+        if (canPrune(blockBound, threshold)) {
+          int target = (blockEnd == Integer.MAX_VALUE) ? docid + 1 : Math.max(docid, blockEnd) + 1;
+
+          for (int j = firstEssential; j < n; j++)
+            args[j].docIteratorAdvanceTo(target);
+
+          continue;
+        }
+      }
+
+      //  The partial score of an Indri document counts the arguments
+      //  that it doesn't match at their default score bounds.
+      Arrays.fill(argMatches, false);
+      double partialScore = base;
+
+      for (int j = firstEssential; j < n; j++) {
+        if (args[j].docIteratorHasMatch(r) &&
+            args[j].docIteratorGetMatch() == docid) {
+          double s = args[j].getScore(r);
+          argScores[argIndex[j]] = s;
+          argMatches[argIndex[j]] = true;
+          partialScore += indri ? getContribution(s, exponents[argIndex[j]], defaultBounds[argIndex[j]]) : s;
+        }
+      }
+
+      //  Check the non-essential arguments, largest bound first, until
+      //  the candidate can't reach the threshold.
+      boolean pruned = false;
+
+      for (int j = firstEssential - 1; j >= 0; j--) {
+        if (canPrune(partialScore + cumBounds[j] - base, threshold)) {
+          pruned = true;
+          break;
+        }
+
+        args[j].docIteratorAdvanceTo(docid);
+
+        if (args[j].docIteratorHasMatch(r) &&
+            args[j].docIteratorGetMatch() == docid) {
+          double s = args[j].getScore(r);
+          argScores[argIndex[j]] = s;
+          argMatches[argIndex[j]] = true;
+          partialScore += indri ? getContribution(s, exponents[argIndex[j]], defaultBounds[argIndex[j]]) : s;
+        }
+      }
+
+      if (! pruned) {
+        double score = 0.0;
+
+        if (indri) {
+          score = getScoreIndri(q, r, docid);
+        } else {
+          for (int i = 0; i < n; i++) {
+            if (argMatches[i])
+              score += argScores[i];
+          }
+        }
+
+        results.add(docid, score);
+
+        //  A higher threshold may make more arguments non-essential.
+        double t = results.getThreshold();
+
+        if (indri && t > Double.NEGATIVE_INFINITY)
+          t = Math.log(t);
+
+        if (bounded && t > threshold) {
+          threshold = t;
+
+          while (firstEssential < n && canPrune(cumBounds[firstEssential], threshold))
+            firstEssential++;
+        }
+      }
+
+      for (int j = firstEssential; j < n; j++)
+        args[j].docIteratorAdvancePast(docid);
+    }
+
+    return results;
+  }
+
+  /**
+   *  Get the exponents of the arguments of an Indri #AND or #WAND,
+   *  which weight the logarithms of the argument scores.
+   *  @param q The query.
+   *  @return The exponent of each argument.
+   */
+  private static double[] getExponents(QrySop q) {
+    int n = q.args.size();
+    double[] exponents = new double[n];
+
+    if (q instanceof QrySopWAnd) {
+      QrySopWAnd wand = (QrySopWAnd) q;
+      double totalWeight = 0.0;
+
+      for (int i = 0; i < n; i++)
+        totalWeight += wand.weights.get(i);
+
+      for (int i = 0; i < n; i++)
+        exponents[i] = wand.weights.get(i) / totalWeight;
+    } else {
+      Arrays.fill(exponents, 1.0 / n);
+    }
+    return exponents;
+  }
+
+  /**
+   *  Get how much more an Indri argument with a score adds to the
+   *  logarithm of a document score than its default score bound does.
+   *  @param score The argument's score.
+   *  @param exponent The argument's exponent.
+   *  @param defaultBound The argument's weighted log default score bound.
+   *  @return The contribution.  It is negative if the score is below
+   *  the default score bound.
+   */
+  private static double getContribution(double score, double exponent, double defaultBound) {
+    return exponent * Math.log(score) - defaultBound;
+  }
+
+  /**
+   *  Get the contribution bound of an Indri argument.  A document that
+   *  the argument doesn't match gets a default score, so the bound is
+   *  never below the default score bound.
+   *  @param bound An upper bound on the argument's score.
+   *  @param exponent The argument's exponent.
+   *  @param defaultBound The argument's weighted log default score bound.
+   *  @return The contribution bound.
+   */
+  private static double getContributionBound(double bound, double exponent, double defaultBound) {
+    return Math.max(0.0, getContribution(bound, exponent, defaultBound));
+  }
+
+  /**
+   *  Get the Indri score of a document that the arguments have been
+   *  advanced to.
+   *  @param q The query, an #AND or #WAND.
+   *  @param r The retrieval model.
+   *  @param docid The document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private static double getScoreIndri(QrySop q, RetrievalModel r, int docid) throws IOException {
+    if (q instanceof QrySopWAnd)
+      return ((QrySopWAnd) q).getScoreIndri(r, docid);
+    else
+      return ((QrySopAnd) q).getScoreIndri(r, docid);
+  }
+
+  /**
+   *  Indicates whether a document with a score upper bound can be
+   *  skipped.  Documents whose score equals the threshold are not
+   *  skipped, because they may still enter the top k on a tie.
+   *  @param bound An upper bound on the document's score.
+   *  @param threshold The score of the k'th document.
+   *  @return True if the document can't enter the top k.
+   */
+  private static boolean canPrune(double bound, double threshold) {
+    return bound < threshold - SLACK * Math.abs(threshold);
+  }
+}
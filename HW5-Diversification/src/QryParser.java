@@ -5,7 +5,6 @@
 import java.io.*;
 import java.util.*;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.util.Version;
@@ -25,10 +24,10 @@ import org.apache.lucene.util.Version;
  *  <li>createOperator: Use a string (e.g., #and) to create a node
  *      (e.g., QrySopAnd).
  *
- *  <li>parseString:  If the operator supports term weights
+ *  <li>parseOperator:  If the operator supports term weights
  *      (e.g., #wsum (0.5 apple 1 pie)), you must modify this method.
- *      For these operators, two substrings (weight and term) are
- *      popped from the query string at each step, instead of one.
+ *      For these operators, two tokens (weight and argument) are
+ *      read from the query string at each step, instead of one.
  *  </ul>
  *  <p>
  *  Add new document fields to the parser by modifying createTerms.
@@ -42,6 +41,24 @@ public class QryParser {
   private static final EnglishAnalyzerConfigurable ANALYZER =
     new EnglishAnalyzerConfigurable(Version.LUCENE_43);
 
+  /**
+   *  A cache of analyzed terms, keyed by the string that was analyzed.
+   *  The cache is kept in least-recently-used order and is limited by
+   *  its number of entries.  Cached arrays are shared, so they must
+   *  not be changed.
+   */
+  private static final LinkedHashMap<String,String[]> TERMCACHE =
+    new LinkedHashMap<String,String[]> (16, 0.75f, true);
+  private static int termCacheCapacity = 10000;	// entries; 0 disables the cache
+  private static long termCacheHits = 0;
+  private static long termCacheMisses = 0;
+
+  /**
+   *  The default weights of the #SDM components:  unigrams, ordered
+   *  windows (#NEAR/1), and unordered windows (#WINDOW/8).
+   */
+  private static final double[] SDM_WEIGHTS = { 0.8, 0.1, 0.1 };
+
   //  -------------------- Initialization -------------------------
 
   static {
@@ -52,29 +69,12 @@ public class QryParser {
 
   //  ----------- Methods, in alphabetical order ------------------
 
-  /**
-   *  Count the number of occurrences of character c in string s.
-   *  @param c A character.
-   *  @param s A string.
-   */
-  private static int countChars (String s, char c) {
-
-    int count = 0;
-
-    for (int i = 0; i < s.length(); i++) {
-    	if (s.charAt (i) == c) 
-    		count ++;
-    }
-
-    return count;
-  }
-
-
   /**
    *  Create the desired query operator.
    *  @parameter operator The operator name.
+   *  @parameter offset The character offset of the operator in the query string.
    */
-  private static Qry createOperator (String operatorName) {
+  private static Qry createOperator (String operatorName, int offset) {
 
       Qry operator = null;
       //  int operatorDistance = 0;
@@ -97,6 +97,11 @@ public class QryParser {
       else if(opLen > 7 && operatorNameLowerCase.substring(0, 7).equals("#window"))
           operator = new QryIopWindow(operatorNameLowerCase.substring(8));
 
+      // #SDM or #SDM/w_t/w_o/w_u operator.  Its arguments are parsed
+      // into a #WAND, and then expanded (see expandSdm).
+      else if(operatorNameLowerCase.equals("#sdm") || operatorNameLowerCase.startsWith("#sdm/"))
+          operator = new QrySopWAnd();
+
       else{
 	      switch (operatorNameLowerCase) {
               case "#or":
@@ -124,7 +129,7 @@ public class QryParser {
                   break;
 	      
               default:
-                  syntaxError ("Unknown query operator " + operatorName);
+                  syntaxError ("Unknown query operator " + operatorName, offset);
 	    }
     }
 
@@ -138,9 +143,10 @@ public class QryParser {
    *  dashes or other punctuation b(e.g., near-death) and/or a field
    *  name (e.g., apple.title).
    *  @parameter token The token consumed from the query string.
+   *  @parameter offset The character offset of the token in the query string.
    *  @throws IOException Error accessing the Lucene index.
    */
-  private static Qry[] createTerms (String token) throws IOException {
+  private static Qry[] createTerms (String token, int offset) throws IOException {
 
     //  Split the token into a term and a field.
 
@@ -164,7 +170,7 @@ public class QryParser {
     	(field.compareTo("title") != 0) &&
     	(field.compareTo("body") != 0) &&
     	(field.compareTo("inlink") != 0)) {
-    	syntaxError ("Unknown field " + token);
+    	syntaxError ("Unknown field " + token, offset);
     }
 
     //  Lexical processing, stop words, stemming. A loop is used
@@ -182,6 +188,148 @@ public class QryParser {
   }
 
 
+  /**
+   *  Expand a sequential dependence model query, #SDM (t_1 ... t_n),
+   *  into the Indri query that it stands for:
+   *  <pre>
+   *    #WAND (w_t #AND (t_1 ... t_n)
+   *           w_o #AND (#NEAR/1 (t_n-1 t_n) ... #NEAR/1 (t_1 t_2))
+   *           w_u #AND (#WINDOW/8 (t_n-1 t_n) ... #WINDOW/8 (t_1 t_2)))
+   *  </pre>
+   *  The weights are given as #SDM/w_t/w_o/w_u; the default is
+   *  #SDM/0.8/0.1/0.1.  Like "sequential dependency model
+   *  queries.perl", the pairs are made from the raw tokens, before stop
+   *  words are removed and hyphenated tokens are split; the pairs are
+   *  then analyzed and optimized as the perl script's output would be.
+   *  For example, #SDM (a of c) pairs (a of) and (of c), which become
+   *  a and c, and #SDM (near-death star) pairs (near death star).  So
+   *  the query is the same as the perl script's, except that a pair of
+   *  tokens in different fields is dropped; the perl script's query
+   *  has a syntax error.
+   *  Components with a 0 weight are dropped, and a query with one token
+   *  is just #AND (t_1).  The terms and term pairs occur in several
+   *  components, so their inverted lists are shared, and the #NEAR/1
+   *  and #WINDOW/8 of a pair are evaluated in one pass (see
+   *  shareIdenticalIops).
+   *  @param operatorName The operator name, e.g., #sdm/0.5/0.25/0.5.
+   *  @param tokens The terms of each raw token (see createTerms).
+   *  @param offset The character offset of the operator in the query string.
+   *  @return The expanded query.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static Qry expandSdm (String operatorName, List<Qry[]> tokens, int offset)
+      throws IOException {
+
+    //  Parse the weights, if any.
+
+    double[] w = SDM_WEIGHTS.clone ();
+    String[] parts = operatorName.split ("/", -1);
+
+    if (parts.length > 1) {
+    	if (parts.length != 4) {
+    		syntaxError ("Expected three weights in " + operatorName, offset);
+    	}
+
+    	for (int i = 0; i < 3; i++) {
+    		try {
+    			w[i] = Double.parseDouble (parts[i + 1]);
+    		} catch (NumberFormatException e) {
+    			syntaxError ("Invalid weight " + parts[i + 1] + " in " + operatorName, offset);
+    		}
+
+    		if (w[i] < 0) {
+    			syntaxError ("Invalid weight " + parts[i + 1] + " in " + operatorName, offset);
+    		}
+    	}
+    }
+
+    //  Create the components.  Each term is copied into each component.
+
+    int n = tokens.size ();
+    Qry unigrams = new QrySopAnd ();
+    unigrams.setDisplayName ("#and");
+
+    for (Qry[] token : tokens)
+    	appendTermCopies (unigrams, token);
+
+    if ((n == 1) || ((w[1] == 0) && (w[2] == 0)))
+    	return unigrams;
+
+    Qry ordered = new QrySopAnd ();
+    Qry unordered = new QrySopAnd ();
+    ordered.setDisplayName ("#and");
+    unordered.setDisplayName ("#and");
+
+    for (int i = n - 2; i >= 0; i--) {
+    	if (! sameField (tokens.get (i), tokens.get (i + 1)))
+    		continue;				// Different fields can't be near
+
+    	Qry near = new QryIopNear ("1");
+    	Qry window = new QryIopWindow ("8");
+    	near.setDisplayName ("#near/1");
+    	window.setDisplayName ("#window/8");
+
+    	for (int j = i; j <= i + 1; j++) {
+    		appendTermCopies (near, tokens.get (j));
+    		appendTermCopies (window, tokens.get (j));
+    	}
+
+    	ordered.appendArg (near);
+    	unordered.appendArg (window);
+    }
+
+    //  Combine the components that have weights.
+
+    Qry[] components = { unigrams, ordered, unordered };
+    QrySopWAnd sdm = new QrySopWAnd ();
+    sdm.setDisplayName ("#wand");
+    sdm.weights = new Vector<Double> ();
+
+    for (int i = 0; i < 3; i++) {
+    	if ((w[i] != 0) && (components[i].args.size () > 0)) {
+    		sdm.weights.add (w[i]);
+    		sdm.appendArg (components[i]);
+    	}
+    }
+
+    return sdm;
+  }
+
+  /**
+   *  Append copies of terms to a query operator.
+   *  @param q The query operator.
+   *  @param terms The terms (see createTerms).
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void appendTermCopies (Qry q, Qry[] terms) throws IOException {
+    for (Qry t : terms) {
+    	QryIopTerm term = (QryIopTerm) t;
+    	q.appendArg (new QryIopTerm (term.getTerm (), term.getField ()));
+    }
+  }
+
+  /**
+   *  Indicates whether the terms of two tokens are in the same field.
+   *  @param a The terms of a token (see createTerms).
+   *  @param b The terms of another token.
+   *  @return True if all of the terms are in the same field.
+   */
+  private static boolean sameField (Qry[] a, Qry[] b) {
+    String field = null;
+
+    for (Qry[] terms : new Qry[][] { a, b }) {
+    	for (Qry t : terms) {
+    		String f = ((QryIop) t).getField ();
+
+    		if (field == null)
+    			field = f;
+    		else if (! field.equals (f))
+    			return false;
+    	}
+    }
+    return true;
+  }
+
   /**
    *  Parse a query string into a query tree.
    *  @param queryString The query string, in an Indri-style query language.
@@ -192,42 +340,61 @@ public class QryParser {
   public static Qry getQuery (String queryString)
       throws IOException, IllegalArgumentException {
 
-      Qry q = parseString(queryString);		// An exact parse
-      q = optimizeQuery(q);			        // An optimized parse
-      return q;
+      return getQuery(queryString, null);
   }
 
   /**
-   *  Get the index of the right parenenthesis that balances the
-   *  left-most parenthesis.  Return -1 if it doesn't exist.
-   *  @param s A string containing a query.
+   *  Parse a query string into a query tree that is optimized for a
+   *  retrieval model (see optimizeQuery).
+   *  @param queryString The query string, in an Indri-style query language.
+   *  @param r The retrieval model that will evaluate the query, or null
+   *  to do only the optimizations that don't depend on the model.
+   *  @return Qry The query tree for the parsed query.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
    */
-  private static int indexOfBalencingParen (String s) {
-
-    int depth = 0;
+  public static Qry getQuery (String queryString, RetrievalModel r)
+      throws IOException, IllegalArgumentException {
 
-    for (int i = 0; i < s.length(); i++) {
-    	if (s.charAt(i) == '(') {
-    		depth ++;
-    	} 
-    	else if (s.charAt(i) == ')') {
-    		depth --;
-    		if (depth == 0) return i;
-    	}
-    }
+      Qry q = parseString(queryString);		// An exact parse
+      q = optimizeQuery(q, r);			        // An optimized parse
 
-    return -1;
+      if (q != null)
+          shareIdenticalIops(q, new HashMap<String,QryIop> ());
+      return q;
   }
 
-
   /**
    *  Optimize the query by removing degenerate nodes produced during
    *  query parsing, for example '#NEAR/1 (of the)' which turns into
    *  '#NEAR/1 ()' after stop words are removed; and unnecessary nodes
    *  or subtrees, such as #AND (#AND (a)), which can be replaced by
    *  'a'.
+   *  <p>
+   *  If the retrieval model is known, the query is also rewritten into
+   *  an equivalent query that is cheaper to evaluate:
+   *  </p>
+   *  <ul>
+   *  <li>Nested operators of the same kind are flattened when that
+   *      doesn't change scores:  #SYN in #SYN, Boolean #AND in #AND
+   *      and #OR in #OR, and BM25 #SUM in #SUM.
+   *  <li>A Boolean #OR or BM25 #SUM drops arguments that can't match
+   *      any document (df=0).
+   *  <li>A Boolean #AND orders its arguments by ascending df, so that
+   *      docIteratorHasMatchAll starts from the rarest argument.
+   *  <li>#WAND and #WSUM merge repeated terms into one argument whose
+   *      weight is the sum of their weights.
+   *  </ul>
+   *  <p>
+   *  df is estimated from the index term statistics (see estimateDf),
+   *  without reading inverted lists.
+   *  </p>
+   *  @param q The query.
+   *  @param r The retrieval model, or null.
+   *  @return The optimized query, or null if it was deleted.
+   *  @throws IOException Error accessing the Lucene index.
    */
-  private static Qry optimizeQuery(Qry q) {
+  private static Qry optimizeQuery(Qry q, RetrievalModel r) throws IOException {
 
     //  Term operators don't benefit from optimization.
     if (q instanceof QryIopTerm) 
@@ -240,10 +407,10 @@ public class QryParser {
     for (int i = q.args.size() - 1; i >= 0; i--) {
 
       Qry q_i_before = q.args.get(i);
-      Qry q_i_after = optimizeQuery (q_i_before);
+      Qry q_i_after = optimizeQuery (q_i_before, r);
 
       if (q_i_after == null) {
-    	  q.removeArg(i);			// optimization deleted the arg
+    	  removeArg(q, i);			// optimization deleted the arg
       } 
       else {
     	  if (q_i_before != q_i_after) {
@@ -252,6 +419,30 @@ public class QryParser {
       }
     }
 
+    if (r != null) {
+    	boolean isBoolean = (r instanceof RetrievalModelUnrankedBoolean) ||
+    	                    (r instanceof RetrievalModelRankedBoolean);
+
+    	if ((q instanceof QryIopSyn) ||
+    	    (isBoolean && ((q instanceof QrySopAnd) || (q instanceof QrySopOr))) ||
+    	    ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum))) {
+    		flattenArgs(q);
+    	}
+
+    	if ((isBoolean && (q instanceof QrySopOr)) ||
+    	    ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum))) {
+    		removeUnmatchableArgs(q, r);
+    	}
+
+    	if (isBoolean && (q instanceof QrySopAnd)) {
+    		sortArgsByDf(q, r);
+    	}
+
+    	if ((q instanceof QrySopWAnd) || (q instanceof QrySopWSum)) {
+    		mergeRepeatedTerms(q);
+    	}
+    }
+
     //  If the operator now has no arguments, it is deleted.
     if (q.args.size () == 0) {
     	return null;
@@ -268,148 +459,370 @@ public class QryParser {
 
   }
 
+  //  --------------- Optimizer passes ----------------------------
 
   /**
-   *  Parse a query string into a query tree.
-   *  @param queryString The query string, in an Indri-style query language.
-   *  @return Qry The query tree for the parsed query.
+   *  Estimate the document frequency of a query:  the exact df of a
+   *  term, and an upper bound for other query operators.  An estimate
+   *  of 0 means that the query can't match any document.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The estimated df.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static long estimateDf (Qry q, RetrievalModel r) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+    	QryIopTerm t = (QryIopTerm) q;
+    	return Idx.getDocFreq (t.getField (), t.getTerm ());
+    }
+
+    if (q instanceof QrySopScore) {
+    	return estimateDf (q.args.get (0), r);
+    }
+
+    //  Operators that match only documents that all arguments match.
+    boolean conjunctive = (q instanceof QryIopNear) || (q instanceof QryIopWindow) ||
+    	((q instanceof QrySopAnd) && ! (r instanceof RetrievalModelIndri));
+
+    //  Operators that match documents that any argument matches.
+    boolean disjunctive = (q instanceof QryIopSyn) || (q instanceof QrySopOr) ||
+    	(q instanceof QrySopSum);
+
+    if (! conjunctive && ! disjunctive) {
+    	return Idx.getNumDocs ();
+    }
+
+    long df = conjunctive ? Long.MAX_VALUE : 0;
+
+    for (Qry q_i : q.args) {
+    	long df_i = estimateDf (q_i, r);
+    	df = conjunctive ? Math.min (df, df_i) : df + df_i;
+    }
+
+    return Math.min (df, Idx.getNumDocs ());
+  }
+
+  /**
+   *  Replace the arguments that are the same kind of query operator as
+   *  their parent by their own arguments, in place.
+   *  @param q The query.
+   */
+  private static void flattenArgs (Qry q) {
+
+    for (int i = q.args.size () - 1; i >= 0; i--) {
+    	Qry q_i = q.args.get (i);
+
+    	if (q_i.getClass () == q.getClass ()) {
+    		q.args.remove (i);
+    		q.args.addAll (i, q_i.args);
+    	}
+    }
+  }
+
+  /**
+   *  Merge the arguments of a #WAND or #WSUM that score the same term
+   *  into the first of them, and add their weights.
+   *  @param q The query.
+   */
+  private static void mergeRepeatedTerms (Qry q) {
+
+    Vector<Double> weights = (q instanceof QrySopWAnd) ?
+    	((QrySopWAnd) q).weights : ((QrySopWSum) q).weights;
+    Map<String,Integer> firstArg = new HashMap<String,Integer> ();
+
+    for (int i = 0; i < q.args.size (); i++) {
+    	Qry q_i = q.args.get (i);
+
+    	if (! (q_i instanceof QrySopScore) || ! (q_i.args.get (0) instanceof QryIopTerm))
+    		continue;
+
+    	QryIopTerm t = (QryIopTerm) q_i.args.get (0);
+    	String key = t.getField () + ":" + t.getTerm ();
+    	Integer first = firstArg.get (key);
+
+    	if (first == null) {
+    		firstArg.put (key, i);
+    	}
+    	else {
+    		weights.set (first, weights.get (first) + weights.get (i));
+    		removeArg (q, i);
+    		i--;
+    	}
+    }
+  }
+
+  /**
+   *  Remove an argument of a query operator, and its weight if the
+   *  operator is weighted.
+   *  @param q The query.
+   *  @param i The index of the argument.
+   */
+  private static void removeArg (Qry q, int i) {
+
+    q.removeArg (i);
+
+    if (q instanceof QrySopWAnd)
+    	((QrySopWAnd) q).weights.remove (i);
+    else if (q instanceof QrySopWSum)
+    	((QrySopWSum) q).weights.remove (i);
+  }
+
+  /**
+   *  Remove the arguments that can't match any document.  At least one
+   *  argument is kept, so that the query still has results (none).
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void removeUnmatchableArgs (Qry q, RetrievalModel r) throws IOException {
+
+    for (int i = q.args.size () - 1; i >= 0 && q.args.size () > 1; i--) {
+    	if (estimateDf (q.args.get (i), r) == 0)
+    		removeArg (q, i);
+    }
+  }
+
+  /**
+   *  Make identical inverted list operators in a query tree share one
+   *  inverted list (see QryIop.shareInvertedList).  For example, in
+   *  #AND (a b #NEAR/1 (a b)), the inverted lists of a and b are read
+   *  only once.
+   *  @param q The query.
+   *  @param iops The first operator seen with each key.
+   *  @return The key of q (its operator, field, and arguments) if it is
+   *  an inverted list operator, otherwise null.
+   */
+  private static String shareIdenticalIops (Qry q, Map<String,QryIop> iops) {
+
+    StringBuilder key = new StringBuilder ();
+
+    if (q instanceof QryIopTerm) {
+    	QryIopTerm t = (QryIopTerm) q;
+    	key.append (t.getTerm ()).append ('.').append (t.getField ());
+    }
+    else {
+    	key.append (q.getDisplayName ().toLowerCase ()).append ('(');
+    }
+
+    for (Qry q_i : q.args) {
+    	String key_i = shareIdenticalIops (q_i, iops);
+    	key.append (' ').append (key_i);
+    }
+
+    if (! (q instanceof QryIop))
+    	return null;
+
+    if (! (q instanceof QryIopTerm))
+    	key.append (')');
+
+    String k = key.toString ();
+    QryIop first = iops.get (k);
+
+    if (first == null) {
+    	iops.put (k, (QryIop) q);
+    	fuseNearWindow ((QryIop) q, k, iops);
+    }
+    else
+    	((QryIop) q).shareInvertedList (first);
+
+    return k;
+  }
+
+  /**
+   *  Make a #NEAR and a #WINDOW with the same arguments, for example the
+   *  ordered and unordered windows of a #SDM term pair, compute their
+   *  inverted lists in one pass (see QryIopNear.fuseWindow).  Each
+   *  operator is fused with at most one other.
+   *  @param q An inverted list operator that doesn't share its list.
+   *  @param k The key of q (see shareIdenticalIops).
+   *  @param iops The first operator seen with each key.  Operators that
+   *  are waiting for a partner are stored with a tab in their key.
+   */
+  private static void fuseNearWindow (QryIop q, String k, Map<String,QryIop> iops) {
+
+    if (! (q instanceof QryIopNear) && ! (q instanceof QryIopWindow))
+    	return;
+
+    String argsKey = k.substring (k.indexOf ('('));
+    String kind = (q instanceof QryIopNear) ? "#near\t" : "#window\t";
+    String other = (q instanceof QryIopNear) ? "#window\t" : "#near\t";
+    QryIop partner = iops.remove (other + argsKey);
+
+    if (partner == null)
+    	iops.put (kind + argsKey, q);
+    else if (q instanceof QryIopNear)
+    	((QryIopNear) q).fuseWindow ((QryIopWindow) partner);
+    else
+    	((QryIopNear) partner).fuseWindow ((QryIopWindow) q);
+  }
+
+  /**
+   *  Order the arguments by ascending estimated df.  Arguments with the
+   *  same df keep their order.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private static void sortArgsByDf (Qry q, RetrievalModel r) throws IOException {
+
+    final Map<Qry,Long> dfs = new IdentityHashMap<Qry,Long> ();
+
+    for (Qry q_i : q.args)
+    	dfs.put (q_i, estimateDf (q_i, r));
+
+    Collections.sort (q.args, new Comparator<Qry> () {
+    	public int compare (Qry a, Qry b) {
+    		return Long.compare (dfs.get (a), dfs.get (b));
+    	}
+    });
+  }
+
+
+  /**
+   *  Parse a query operator and its arguments, recursively.  The
+   *  cursor must be at the operator name (e.g., #and), and it is left
+   *  after the operator's closing ')'.
+   *  @param cursor The position in the query string.
+   *  @return Qry The query tree for the query operator.
    *  @throws IOException Error accessing the Lucene index.
    *  @throws IllegalArgumentException Query syntax error.
    */
-  private static Qry parseString (String queryString)
+  private static Qry parseOperator (QueryCursor cursor)
       throws IOException, IllegalArgumentException {
 
-    //  This simple parser is sensitive to parenthensis placement, so
-    //  check for basic errors first.
-
-    queryString = queryString.trim();	// The last character should be ')'
+    int operatorOffset = cursor.offset;
 
-    if ((countChars(queryString, '(') == 0) ||
-    	(countChars(queryString, '(') != countChars(queryString, ')')) ||
-    	(indexOfBalencingParen (queryString) != (queryString.length() - 1))) {
-    	syntaxError ("Missing, unbalanced, or misplaced parentheses");
+    if (cursor.atEnd () || cursor.peek () != '#') {
+    	syntaxError ("Expected a query operator", operatorOffset);
     }
 
-    //  The query language is prefix-oriented, so the query string can
-    //  be processed left to right. At each step, a substring is
-    //  popped from the head (left) of the string, and is converted to
-    //  a Qry object that is added to the query tree. Subqueries are
-    //  handled via recursion.
+    String operatorName = cursor.readToken ();
+    Qry queryTree = createOperator (operatorName, operatorOffset);
 
-    //  Find the left-most query operator and start the query tree.
+    cursor.skipWhitespace ();
 
-    String[] substrings = queryString.split("[(]", 2);
-    Qry queryTree = createOperator(substrings[0].trim());
+    if (cursor.atEnd () || cursor.peek () != '(') {
+    	syntaxError ("Expected '(' after " + operatorName, cursor.offset);
+    }
+    cursor.offset ++;
 
-    //  Start consuming queryString by removing the query operator and
-    //  its terminating ')'. queryString is always the part of the
-    //  query that hasn't been processed yet.
-    
-    queryString = substrings[1];
-    queryString = queryString.substring(0, queryString.lastIndexOf(")")).trim();
-    
     //  Each pass below handles one argument to the query operator.
     //  Note: An argument can be a token that produces multiple terms
     //  (e.g., "near-death") or a subquery (e.g., "#and (a b c)").
     //  Recurse on subqueries.
 
-      // deal with weighted operators (#WAND or #WSUM)
-      boolean isWeighedOp = (queryTree instanceof QrySopWAnd)
-              || (queryTree instanceof QrySopWSum);
+    // deal with weighted operators (#WAND or #WSUM)
+    boolean isSdm = operatorName.toLowerCase ().startsWith ("#sdm");
+    boolean isWeighedOp = ((queryTree instanceof QrySopWAnd) && ! isSdm)
+            || (queryTree instanceof QrySopWSum);
 
-      Vector<Double> weights = new Vector<>();   // initialize weights
+    Vector<Double> weights = new Vector<>();   // initialize weights
+    List<Qry[]> sdmTokens = new ArrayList<Qry[]> ();
 
-      while(queryString.length() > 0) {
-          //  If the operator uses weighted query arguments, each pass of
-          //  this loop must handle "weight arg".  Handle the weight first.
+    while (true) {
+    	cursor.skipWhitespace ();
 
-          double currWeight = 1;  // initialize weight for the current argument
+    	if (cursor.atEnd ()) {
+    		syntaxError ("Missing ')' for the " + operatorName + " at character " + operatorOffset);
+    	}
 
-          //  STUDENT HW2 CODE GOES HERE
-          if(isWeighedOp) {
-              int idx = queryString.indexOf(' ');
-              currWeight = Double.parseDouble(queryString.substring(0, idx));
-              queryString = queryString.substring(idx + 1);
-          }
+    	if (cursor.peek () == ')') {		// The end of the operator
+    		cursor.offset ++;
+    		break;
+    	}
 
-          //  Now handle the argument (which could be a subquery).
-          Qry[] qargs = null;
-          PopData<String,String> p;
+    	//  If the operator uses weighted query arguments, each pass of
+    	//  this loop must handle "weight arg".  Handle the weight first.
 
-          if(queryString.charAt(0) == '#') {	// Subquery
-              p = popSubquery (queryString);
-              qargs = new Qry[1];
-              qargs[0] = parseString(p.getPopped());
-          }
-          else {					// Term
-              p = popTerm (queryString);
-              qargs = createTerms(p.getPopped());
-          }
+    	double currWeight = 1;  // initialize weight for the current argument
 
-          queryString = p.getRemaining().trim();	// Consume the arg
+    	if (isWeighedOp) {
+    		int weightOffset = cursor.offset;
+    		String weight = cursor.readToken ();
 
-          //  Add the argument(s) to the query tree.
-          for(int i = 0; i < qargs.length; i++) {
+    		try {
+    			currWeight = Double.parseDouble (weight);
+    		} catch (NumberFormatException e) {
+    			syntaxError ("Invalid weight " + weight, weightOffset);
+    		}
 
-              // STUDENTS WILL NEED TO ADJUST THIS BLOCK TO HANDLE WEIGHTS IN HW2
-              if(isWeighedOp) weights.add(currWeight);
-              queryTree.appendArg(qargs[i]);
-          }
-      }
-      if(queryTree instanceof QrySopWAnd)
-          ((QrySopWAnd)queryTree).weights = weights;
-      if(queryTree instanceof QrySopWSum)
-          ((QrySopWSum)queryTree).weights = weights;
+    		cursor.skipWhitespace ();
 
-      return queryTree;
-  }  
+    		if (cursor.atEnd () || cursor.peek () == ')') {
+    			syntaxError ("Missing argument after weight " + weight, cursor.offset);
+    		}
+    	}
 
-    
-  /**
-   *  Remove a subQuery from an argument string. Return the subquery
-   *  and the modified argument string.
-   *  @param argString A partial query argument string, e.g.: "#and(a b) c d".
-   *  @return PopData<String,String> The subquery string and the
-   *  modified argString, e.g., "#and(a b)" and "c d".
-   */
-  static private PopData<String, String> popSubquery(String argString) {
-	
-    int i = indexOfBalencingParen (argString);
-	  
-    if(i < 0) {					// Query syntax error.  The parser
-    	i = argString.length();	// handles it.  Here, just don't fail.
+    	//  Now handle the argument (which could be a subquery).
+    	Qry[] qargs = null;
+
+    	if (cursor.peek () == '#') {		// Subquery
+    		if (isSdm) {
+    			syntaxError ("The arguments of " + operatorName + " must be terms", cursor.offset);
+    		}
+    		qargs = new Qry[1];
+    		qargs[0] = parseOperator (cursor);
+    	}
+    	else if (cursor.peek () == '(') {
+    		syntaxError ("Misplaced '('", cursor.offset);
+    	}
+    	else {					// Term
+    		int termOffset = cursor.offset;
+    		qargs = createTerms (cursor.readToken (), termOffset);
+    	}
+
+    	//  #SDM pairs the raw tokens, so keep the terms of each token.
+    	if (isSdm) {
+    		sdmTokens.add (qargs);
+    		continue;
+    	}
+
+    	//  Add the argument(s) to the query tree.
+    	for (int i = 0; i < qargs.length; i++) {
+    		if (isWeighedOp) weights.add (currWeight);
+    		queryTree.appendArg (qargs[i]);
+    	}
     }
-    
-    String subquery = argString.substring(0, i+1);
-    argString = argString.substring(i+1);
 
-    return new PopData<String,String>(subquery, argString);
+    if (isSdm)
+    	return expandSdm (operatorName, sdmTokens, operatorOffset);
+
+    if (queryTree instanceof QrySopWAnd)
+    	((QrySopWAnd) queryTree).weights = weights;
+    if (queryTree instanceof QrySopWSum)
+    	((QrySopWSum) queryTree).weights = weights;
+
+    return queryTree;
   }
 
-    
+
   /**
-   *  Remove a term from an argument string. Return the term and
-   *  the modified argument string.
-   *  @param argString A partial query argument string, e.g., "a b c d".
-   *  @return PopData<String,String>
-   *  The term string and the modified argString, e.g., "a" and "b c d".
+   *  Parse a query string into a query tree.  The query language is
+   *  prefix-oriented, so the query string is parsed in one pass, left
+   *  to right, by recursive descent (see parseOperator).
+   *  @param queryString The query string, in an Indri-style query language.
+   *  @return Qry The query tree for the parsed query.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
    */
-  static private PopData<String,String> popTerm (String argString) {
-	
-    String[] substrings = argString.split ("[ \t\n\r]+", 2);
-    String token = substrings[0];
+  private static Qry parseString (String queryString)
+      throws IOException, IllegalArgumentException {
 
-    if (substrings.length < 2) {	//  Is this the last argument?
-    	argString = "";
-    } 
-    else {
-    	argString = substrings[1];
+    QueryCursor cursor = new QueryCursor (queryString);
+
+    cursor.skipWhitespace ();
+    Qry queryTree = parseOperator (cursor);
+    cursor.skipWhitespace ();
+
+    if (! cursor.atEnd ()) {
+    	syntaxError ("Unexpected text after the query", cursor.offset);
     }
 
-    return new PopData<String,String>(substrings[0], argString);
+    return queryTree;
   }
 
-    
+
   /**
    *  Throw an error specialized for query parsing syntax errors.
    *  @param errorString The string "Syntax
@@ -422,31 +835,193 @@ public class QryParser {
 
 
   /**
-   *  Given part of a query string, returns an array of terms with
-   *  stopwords removed and the terms stemmed using the Krovetz
-   *  stemmer.  Use this method to process raw query terms.
-   *  @param query String containing query. 
+   *  Throw an error specialized for query parsing syntax errors, with
+   *  the location of the error in the query string.
+   *  @param errorString A description of the error.
+   *  @param offset The character offset of the error in the query string.
+   *  @throws IllegalArgumentException The query contained a syntax
+   *  error
+   */
+  static private void syntaxError (String errorString, int offset) throws IllegalArgumentException {
+	  syntaxError (errorString + " at character " + offset);
+  }
+
+
+  /**
+   *  Analyze a string with a token stream:  lexical processing, stop
+   *  word removal, and stemming.  The analyzer reuses one token stream
+   *  per thread, so consecutive calls don't create new token streams;
+   *  analyzing a query's terms one at a time (see createTerms) only
+   *  costs a reset of the stream per term, so there is no batch API.
+   *  @param query The string to analyze.
    *  @return Array of query tokens
    *  @throws IOException Error accessing the Lucene index.
    */
-  public static String[] tokenizeString(String query) throws IOException {
+  private static String[] analyze(String query) throws IOException {
 
-    TokenStreamComponents comp =
-      ANALYZER.createComponents("dummy", new StringReader(query));
-    TokenStream tokenStream = comp.getTokenStream();
+    TokenStream tokenStream = ANALYZER.tokenStream("dummy", new StringReader(query));
 
     CharTermAttribute charTermAttribute =
       tokenStream.addAttribute(CharTermAttribute.class);
-    tokenStream.reset();
 
     List<String> tokens = new ArrayList<String>();
 
-    while (tokenStream.incrementToken()) {
-      String term = charTermAttribute.toString();
-      tokens.add(term);
+    try {
+      tokenStream.reset();
+
+      while (tokenStream.incrementToken()) {
+        String term = charTermAttribute.toString();
+        tokens.add(term);
+      }
+
+      tokenStream.end();
+    } finally {
+      tokenStream.close();
     }
 
     return tokens.toArray (new String[tokens.size()]);
   }
 
+  /**
+   *  Get the number of tokenizeString calls that the term cache
+   *  satisfied.
+   *  @return The number of cache hits.
+   */
+  public static long getTermCacheHits () {
+    synchronized (TERMCACHE) {
+      return termCacheHits;
+    }
+  }
+
+  /**
+   *  Get the number of tokenizeString calls that analyzed their string.
+   *  @return The number of cache misses.
+   */
+  public static long getTermCacheMisses () {
+    synchronized (TERMCACHE) {
+      return termCacheMisses;
+    }
+  }
+
+  /**
+   *  Set the maximum number of entries in the term cache.  Least
+   *  recently used entries are evicted when there are too many.  A size
+   *  of 0 disables the cache.
+   *  @param entries The maximum number of cached strings.
+   */
+  public static void setTermCacheSize (int entries) {
+    synchronized (TERMCACHE) {
+      termCacheCapacity = Math.max (0, entries);
+
+      Iterator<String> it = TERMCACHE.keySet ().iterator ();
+
+      while ((TERMCACHE.size () > termCacheCapacity) && it.hasNext ()) {
+        it.next ();
+        it.remove ();
+      }
+    }
+  }
+
+  /**
+   *  Given part of a query string, returns an array of terms with
+   *  stopwords removed and the terms stemmed using the Krovetz
+   *  stemmer.  Use this method to process raw query terms.  Results
+   *  are served from the term cache when possible; the returned array
+   *  may be shared, so it must not be changed.
+   *  @param query String containing query. 
+   *  @return Array of query tokens
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static String[] tokenizeString(String query) throws IOException {
+
+    synchronized (TERMCACHE) {
+      if (termCacheCapacity > 0) {
+        String[] cached = TERMCACHE.get (query);
+
+        if (cached != null) {
+          termCacheHits ++;
+          return cached;
+        }
+
+        termCacheMisses ++;
+      }
+    }
+
+    //  Analyze outside of the lock.
+    String[] terms = analyze (query);
+
+    synchronized (TERMCACHE) {
+      if (termCacheCapacity > 0) {
+        TERMCACHE.put (query, terms);
+
+        if (TERMCACHE.size () > termCacheCapacity) {
+          Iterator<String> it = TERMCACHE.keySet ().iterator ();
+          it.next ();
+          it.remove ();
+        }
+      }
+    }
+
+    return terms;
+  }
+
+  //  --------------- Query cursor --------------------------------
+
+  /**
+   *  The parser's position in a query string.  The query string is
+   *  read from a character array, and tokens are copied from it only
+   *  once, so parsing is linear in the length of the query.
+   */
+  private static final class QueryCursor {
+
+    private final char[] chars;
+
+    //  The character offset of the next character to read.
+    int offset = 0;
+
+    QueryCursor (String queryString) {
+      this.chars = queryString.toCharArray ();
+    }
+
+    /**
+     *  @return True if the whole query string has been read.
+     */
+    boolean atEnd () {
+      return this.offset >= this.chars.length;
+    }
+
+    /**
+     *  @return The next character.  The cursor must not be at the end.
+     */
+    char peek () {
+      return this.chars[this.offset];
+    }
+
+    /**
+     *  Read a token:  the characters up to the next white space or
+     *  parenthesis.
+     *  @return The token, which may be empty.
+     */
+    String readToken () {
+      int start = this.offset;
+
+      while (! this.atEnd () && ! isDelimiter (this.chars[this.offset]))
+        this.offset ++;
+
+      return new String (this.chars, start, this.offset - start);
+    }
+
+    /**
+     *  Move past white space.
+     */
+    void skipWhitespace () {
+      while (! this.atEnd () && Character.isWhitespace (this.chars[this.offset]))
+        this.offset ++;
+    }
+
+    private static boolean isDelimiter (char c) {
+      return Character.isWhitespace (c) || c == '(' || c == ')';
+    }
+  }
+
 }
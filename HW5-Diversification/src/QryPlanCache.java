@@ -0,0 +1,183 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A cache of parsed and optimized query trees, keyed by the retrieval
+ *  model and the normalized query string.  Parameter sweeps and
+ *  diversification evaluate the same query text many times; a cached
+ *  tree is reset (see Qry.reset) and evaluated again instead of being
+ *  parsed again.
+ *  <p>
+ *  A query tree holds iterator state, so it can only be evaluated by
+ *  one caller at a time.  acquire removes a tree from the cache, and
+ *  release resets it and returns it when the caller is done, so cached
+ *  trees don't hold inverted lists; postings are only cached within
+ *  the postingCacheMB budget (see Idx).  Callers that ask for
+ *  a tree that is in use get a new tree.  The cache is kept in
+ *  least-recently-used order and is limited by its number of trees.
+ *  </p><p>
+ *  The optimizer's rewrites depend on the index, for example arguments
+ *  that don't match any document are dropped, so the cache is cleared
+ *  when the current index changes (see clear).  A tree that was
+ *  acquired before the cache was cleared isn't cached when it is
+ *  released.
+ *  </p>
+ */
+public class QryPlanCache {
+
+  //  --------------- Constants and variables -----------------------
+
+  private static final LinkedHashMap<String,Qry> PLANCACHE =
+    new LinkedHashMap<String,Qry> (16, 0.75f, true);
+  private static int planCacheCapacity = 0;	// trees; 0 disables the cache
+  private static long planCacheHits = 0;
+  private static long planCacheMisses = 0;
+
+  //  The number of times that the cache was cleared, and the number
+  //  when each tree that hasn't been released yet was acquired.
+  private static long planCacheGeneration = 0;
+  private static final IdentityHashMap<Qry,Long> ACQUIRED =
+    new IdentityHashMap<Qry,Long> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Get a query tree for a query string.  The tree is served from the
+   *  cache when possible; otherwise the query string is parsed.  The
+   *  caller must call release when it is done with the tree.
+   *  @param qString The query string, in an Indri-style query language.
+   *  @param model The retrieval model that will evaluate the query.
+   *  @return The query tree, or null if the query is empty.
+   *  @throws IOException Error accessing the Lucene index.
+   *  @throws IllegalArgumentException Query syntax error.
+   */
+  public static Qry acquire (String qString, RetrievalModel model) throws IOException {
+
+    long generation;
+
+    synchronized (PLANCACHE) {
+      if (planCacheCapacity == 0)
+        return QryParser.getQuery (qString, model);
+
+      generation = planCacheGeneration;
+      Qry cached = PLANCACHE.remove (getKey (qString, model));
+
+      if (cached != null) {
+        planCacheHits ++;
+        cached.reset ();
+        ACQUIRED.put (cached, generation);
+        return cached;
+      }
+
+      planCacheMisses ++;
+    }
+
+    Qry q = QryParser.getQuery (qString, model);
+
+    if (q != null) {
+      synchronized (PLANCACHE) {
+        ACQUIRED.put (q, generation);
+      }
+    }
+
+    return q;
+  }
+
+  /**
+   *  Return a query tree to the cache after the caller is done with it.
+   *  @param qString The query string that the tree was acquired for.
+   *  @param model The retrieval model that the tree was acquired for.
+   *  @param q The query tree, or null.
+   */
+  public static void release (String qString, RetrievalModel model, Qry q) {
+
+    if (q == null)
+      return;
+
+    synchronized (PLANCACHE) {
+      String key = getKey (qString, model);
+      Long generation = ACQUIRED.remove (q);
+
+      if ((generation == null) || (generation != planCacheGeneration))
+        return;				// Parsed for another index
+
+      if ((planCacheCapacity > 0) && (! PLANCACHE.containsKey (key))) {
+        q.reset ();
+        PLANCACHE.put (key, q);
+        trimPlanCache (planCacheCapacity);
+      }
+    }
+  }
+
+  /**
+   *  Discard all cached trees.  Trees that are in use aren't cached when
+   *  they are released.  Called when the current index changes.
+   */
+  public static void clear () {
+    synchronized (PLANCACHE) {
+      PLANCACHE.clear ();
+      planCacheGeneration ++;
+    }
+  }
+
+  /**
+   *  Get the number of acquire calls that the cache satisfied.
+   *  @return The number of cache hits.
+   */
+  public static long getHits () {
+    synchronized (PLANCACHE) {
+      return planCacheHits;
+    }
+  }
+
+  /**
+   *  Get the number of acquire calls that parsed the query string.
+   *  @return The number of cache misses.
+   */
+  public static long getMisses () {
+    synchronized (PLANCACHE) {
+      return planCacheMisses;
+    }
+  }
+
+  /**
+   *  Get the cache key of a query:  the retrieval model's class and the
+   *  query string with runs of white space replaced by one space.
+   *  @param qString The query string.
+   *  @param model The retrieval model.
+   *  @return The cache key.
+   */
+  private static String getKey (String qString, RetrievalModel model) {
+    return model.getClass ().getName () + "\t" + qString.trim ().replaceAll ("\\s+", " ");
+  }
+
+  /**
+   *  Set the maximum number of cached query trees.  Least recently used
+   *  trees are evicted when there are too many.  A size of 0 disables
+   *  the cache.
+   *  @param trees The maximum number of cached trees.
+   */
+  public static void setSize (int trees) {
+    synchronized (PLANCACHE) {
+      planCacheCapacity = Math.max (0, trees);
+      trimPlanCache (planCacheCapacity);
+    }
+  }
+
+  /**
+   *  Evict least recently used trees until the cache fits its capacity.
+   *  The caller must hold the cache lock.
+   *  @param trees The maximum number of cached trees.
+   */
+  private static void trimPlanCache (int trees) {
+    Iterator<Map.Entry<String,Qry>> it = PLANCACHE.entrySet ().iterator ();
+
+    while ((PLANCACHE.size () > trees) && it.hasNext ()) {
+      it.next ();
+      it.remove ();
+    }
+  }
+}
@@ -0,0 +1,609 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  The root class of compiled scorers (see QryCompiler).  A scorer
+ *  computes the score of a query operator for one retrieval model.
+ *  The query operator still decides which documents match; the scorer
+ *  only replaces its getScore and getDefaultScore methods.
+ *  <p>
+ *  Each subclass is specific to one query operator and one retrieval
+ *  model, so it doesn't test the type of the retrieval model.  The
+ *  BM25 and Indri SCORE scorers use the formulas of their SCORE
+ *  operator, with the parameters and corpus statistics that it cached
+ *  when it was initialized (see QrySopScore.scoreBM25), so there is one
+ *  copy of each formula.  The other scorers combine scores with the
+ *  same arithmetic as the query operators, so scores are identical.
+ *  </p><p>
+ *  Scorers also score blocks of documents that the query operator
+ *  matched (see QrySop.nextBlock), argument by argument, in loops over
+ *  arrays.  SCORE scorers read tfs from their argument's inverted list,
+ *  so blocks are only supported if the inverted lists are materialized.
+ *  </p>
+ */
+public abstract class QryScorer {
+
+  /**
+   *  The query operator that the scorer scores.
+   */
+  protected final Qry q;
+
+  /**
+   *  The retrieval model that determines what is a match.
+   */
+  protected final RetrievalModel r;
+
+  /**
+   *  The scorers of the query operator's arguments.
+   */
+  protected final QryScorer[] args;
+
+  //  Scratch space for the block scores of one argument at a time.
+  protected double[] argScores = null;
+  protected boolean[] argMatches = null;
+
+  /**
+   *  @param q The query operator that the scorer scores.
+   *  @param r The retrieval model that determines what is a match.
+   *  @param args The scorers of the arguments.
+   */
+  protected QryScorer(Qry q, RetrievalModel r, QryScorer[] args) {
+    this.q = q;
+    this.r = r;
+    this.args = args;
+  }
+
+  /**
+   *  Get a score for a document that the query operator matched.
+   *  @param docid The document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public abstract double getScore(int docid) throws IOException;
+
+  /**
+   *  Get a default score for a document that the query operator doesn't
+   *  match.
+   *  @param docid The document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore(int docid) throws IOException {
+    return this.getScore(docid);
+  }
+
+  /**
+   *  Indicates whether the scorer can score blocks of documents.
+   *  @return True if the scorers of all arguments can score blocks.
+   */
+  public boolean supportsBlocks() {
+    for (int i = 0; i < this.args.length; i++) {
+      if (! this.args[i].supportsBlocks())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   *  Score a block of documents.  The docids of each block must follow
+   *  the docids of the previous block.  A document that the query
+   *  operator doesn't match gets its default score (Indri) or 0.
+   *  @param docids The docids, in ascending order.
+   *  @param n The number of docids.
+   *  @param scores Filled with the document scores.
+   *  @param matches Filled with whether the query operator matches each document.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public abstract void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+    throws IOException;
+
+  /**
+   *  Score a block of documents with an argument.  The results are in
+   *  argScores and argMatches until the next call.
+   *  @param i The index of the argument.
+   *  @param docids The docids, in ascending order.
+   *  @param n The number of docids.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  protected final void scoreArgBlock(int i, int[] docids, int n) throws IOException {
+    if (this.argScores == null || this.argScores.length < n) {
+      this.argScores = new double[docids.length];
+      this.argMatches = new boolean[docids.length];
+    }
+    this.args[i].scoreBlock(docids, n, this.argScores, this.argMatches);
+  }
+
+  /**
+   *  Indicates whether the query operator matches a document.  The
+   *  operator's iterator must not have been advanced past the document.
+   *  @param docid The document id.
+   *  @return True if the query operator matches the document.
+   */
+  protected final boolean matches(int docid) {
+    return this.q.docIteratorHasMatch(this.r) && this.q.docIteratorGetMatch() == docid;
+  }
+
+  //  --------------- SCORE -----------------------------------------
+
+  /**
+   *  The root class of SCORE scorers.  Blocks are matched against the
+   *  argument's inverted list.
+   */
+  abstract static class ListScorer extends QryScorer {
+
+    //  The SCORE operator, whose formulas and corpus statistics the
+    //  BM25 and Indri scorers use, and its argument.
+    protected final QrySopScore score;
+    protected final QryIop arg;
+
+    //  The position in the argument's inverted list of the last block,
+    //  and the positions of the documents of the block.
+    private int cursor = 0;
+    protected int[] positions = null;
+
+    ListScorer(QrySopScore q, RetrievalModel r) {
+      super(q, r, new QryScorer[0]);
+      this.score = q;
+      this.arg = q.getArg(0);
+    }
+
+    public boolean supportsBlocks() {
+      return this.arg.getInvertedList() != null;
+    }
+
+    /**
+     *  Find a block of documents in the argument's inverted list.  The
+     *  list positions of the documents are in positions.
+     *  @param list The argument's inverted list.
+     *  @param docids The docids, in ascending order.
+     *  @param n The number of docids.
+     *  @param matches Filled with whether the list has each document.
+     */
+    protected final void matchBlock(InvList list, int[] docids, int n, boolean[] matches) {
+      if (this.positions == null || this.positions.length < n)
+        this.positions = new int[docids.length];
+
+      int p = this.cursor;
+
+      for (int i = 0; i < n; i++) {
+        p = QryIop.gallop(list.docids, p, list.df, docids[i]);
+        matches[i] = (p < list.df) && (list.docids[p] == docids[i]);
+        this.positions[i] = p;
+      }
+      this.cursor = p;
+    }
+  }
+
+  //  --------------- Unranked Boolean ------------------------------
+
+  /**
+   *  SCORE for the UnrankedBoolean retrieval model.
+   */
+  static final class UnrankedBooleanScore extends ListScorer {
+
+    UnrankedBooleanScore(QrySopScore q, RetrievalModel r) {
+      super(q, r);
+    }
+
+    public double getScore(int docid) {
+      return 1.0;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches) {
+      this.matchBlock(this.arg.getInvertedList(), docids, n, matches);
+      for (int i = 0; i < n; i++)
+        scores[i] = matches[i] ? 1.0 : 0.0;
+    }
+  }
+
+  /**
+   *  AND and OR for the UnrankedBoolean retrieval model.
+   */
+  static final class UnrankedBoolean extends QryScorer {
+
+    private final boolean and;
+
+    UnrankedBoolean(Qry q, RetrievalModel r, QryScorer[] args) {
+      super(q, r, args);
+      this.and = (q instanceof QrySopAnd);
+    }
+
+    public double getScore(int docid) {
+      return 1.0;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      Arrays.fill(matches, 0, n, this.and);
+
+      for (int j = 0; j < this.args.length; j++) {
+        this.scoreArgBlock(j, docids, n);
+        for (int i = 0; i < n; i++) {
+          if (this.and)
+            matches[i] &= this.argMatches[i];
+          else
+            matches[i] |= this.argMatches[i];
+        }
+      }
+
+      for (int i = 0; i < n; i++)
+        scores[i] = matches[i] ? 1.0 : 0.0;
+    }
+  }
+
+  //  --------------- Ranked Boolean --------------------------------
+
+  /**
+   *  SCORE for the RankedBoolean retrieval model.
+   */
+  static final class RankedBooleanScore extends ListScorer {
+
+    RankedBooleanScore(QrySopScore q, RetrievalModel r) {
+      super(q, r);
+    }
+
+    public double getScore(int docid) {
+      return this.arg.docIteratorGetMatchTf();
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches) {
+      InvList list = this.arg.getInvertedList();
+
+      this.matchBlock(list, docids, n, matches);
+      for (int i = 0; i < n; i++)
+        scores[i] = matches[i] ? list.tfs[this.positions[i]] : 0.0;
+    }
+  }
+
+  /**
+   *  AND for the RankedBoolean retrieval model.
+   */
+  static final class RankedBooleanAnd extends QryScorer {
+
+    RankedBooleanAnd(Qry q, RetrievalModel r, QryScorer[] args) {
+      super(q, r, args);
+    }
+
+    public double getScore(int docid) throws IOException {
+      double score = Integer.MAX_VALUE;
+
+      //  AND matches only documents that all of its arguments match.
+      for (int i = 0; i < this.args.length; i++)
+        score = Math.min(score, this.args[i].getScore(docid));
+
+      return score;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      Arrays.fill(scores, 0, n, Integer.MAX_VALUE);
+      Arrays.fill(matches, 0, n, true);
+
+      for (int j = 0; j < this.args.length; j++) {
+        this.scoreArgBlock(j, docids, n);
+        for (int i = 0; i < n; i++) {
+          scores[i] = Math.min(scores[i], this.argScores[i]);
+          matches[i] &= this.argMatches[i];
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        if (! matches[i])
+          scores[i] = 0.0;
+      }
+    }
+  }
+
+  /**
+   *  OR for the RankedBoolean retrieval model.
+   */
+  static final class RankedBooleanOr extends QryScorer {
+
+    RankedBooleanOr(Qry q, RetrievalModel r, QryScorer[] args) {
+      super(q, r, args);
+    }
+
+    public double getScore(int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].matches(docid))
+          score = Math.max(score, this.args[i].getScore(docid));
+      }
+      return score;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      Arrays.fill(scores, 0, n, 0.0);
+      Arrays.fill(matches, 0, n, false);
+
+      for (int j = 0; j < this.args.length; j++) {
+        this.scoreArgBlock(j, docids, n);
+        for (int i = 0; i < n; i++) {
+          if (this.argMatches[i]) {
+            scores[i] = Math.max(scores[i], this.argScores[i]);
+            matches[i] = true;
+          }
+        }
+      }
+    }
+  }
+
+  //  --------------- BM25 ------------------------------------------
+
+  /**
+   *  SCORE for the BM25 retrieval model.
+   */
+  static final class BM25Score extends ListScorer {
+
+    BM25Score(QrySopScore q, RetrievalModelBM25 r) {
+      super(q, r);
+    }
+
+    public double getScore(int docid) throws IOException {
+      double tf = this.arg.docIteratorGetMatchTf();
+      return this.score.scoreBM25(tf, this.score.getFieldLength(docid));
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      InvList list = this.arg.getInvertedList();
+
+      this.matchBlock(list, docids, n, matches);
+      for (int i = 0; i < n; i++) {
+        if (matches[i]) {
+          double tf = list.tfs[this.positions[i]];
+          scores[i] = this.score.scoreBM25(tf, this.score.getFieldLength(docids[i]));
+        } else
+          scores[i] = 0.0;
+      }
+    }
+  }
+
+  /**
+   *  SUM for the BM25 retrieval model.
+   */
+  static final class BM25Sum extends QryScorer {
+
+    BM25Sum(Qry q, RetrievalModel r, QryScorer[] args) {
+      super(q, r, args);
+    }
+
+    public double getScore(int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].matches(docid))
+          score += this.args[i].getScore(docid);
+      }
+      return score;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      Arrays.fill(scores, 0, n, 0.0);
+      Arrays.fill(matches, 0, n, false);
+
+      for (int j = 0; j < this.args.length; j++) {
+        this.scoreArgBlock(j, docids, n);
+        for (int i = 0; i < n; i++) {
+          if (this.argMatches[i]) {
+            scores[i] += this.argScores[i];
+            matches[i] = true;
+          }
+        }
+      }
+    }
+  }
+
+  //  --------------- Indri -----------------------------------------
+
+  /**
+   *  SCORE for the Indri retrieval model.
+   */
+  static final class IndriScore extends ListScorer {
+
+    IndriScore(QrySopScore q, RetrievalModelIndri r) {
+      super(q, r);
+    }
+
+    public double getScore(int docid) throws IOException {
+      double tf = this.arg.docIteratorGetMatchTf();
+      return this.score.scoreIndri(tf, this.score.getFieldLength(docid));
+    }
+
+    public double getDefaultScore(int docid) throws IOException {
+      return this.score.defaultScoreIndri(this.score.getFieldLength(docid));
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      InvList list = this.arg.getInvertedList();
+
+      this.matchBlock(list, docids, n, matches);
+      for (int i = 0; i < n; i++) {
+        double lenDoc = this.score.getFieldLength(docids[i]);
+
+        if (matches[i])
+          scores[i] = this.score.scoreIndri(list.tfs[this.positions[i]], lenDoc);
+        else
+          scores[i] = this.score.defaultScoreIndri(lenDoc);
+      }
+    }
+  }
+
+  /**
+   *  AND and WAND for the Indri retrieval model.  AND gives each
+   *  argument the same exponent.
+   */
+  static final class IndriAnd extends QryScorer {
+
+    private final double[] exponents;		// null for AND
+    private final double exponent;		// 1 / args, for AND
+
+    IndriAnd(Qry q, RetrievalModel r, QryScorer[] args, double[] exponents) {
+      super(q, r, args);
+      this.exponents = exponents;
+      this.exponent = 1.0 / args.length;
+    }
+
+    public double getScore(int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double s = this.args[i].matches(docid) ?
+          this.args[i].getScore(docid) : this.args[i].getDefaultScore(docid);
+
+        if (this.exponents == null)
+          score *= s;
+        else
+          score *= Math.pow(s, this.exponents[i]);
+      }
+      return (this.exponents == null) ? Math.pow(score, this.exponent) : score;
+    }
+
+    public double getDefaultScore(int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.exponents == null)
+          score *= this.args[i].getDefaultScore(docid);
+        else
+          score *= Math.pow(this.args[i].getDefaultScore(docid), this.exponents[i]);
+      }
+      return (this.exponents == null) ? Math.pow(score, this.exponent) : score;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      //  Indri AND matches documents that any argument matches.
+      Arrays.fill(scores, 0, n, 1.0);
+      Arrays.fill(matches, 0, n, false);
+
+      for (int j = 0; j < this.args.length; j++) {
+        this.scoreArgBlock(j, docids, n);
+        for (int i = 0; i < n; i++) {
+          if (this.exponents == null)
+            scores[i] *= this.argScores[i];
+          else
+            scores[i] *= Math.pow(this.argScores[i], this.exponents[j]);
+          matches[i] |= this.argMatches[i];
+        }
+      }
+
+      if (this.exponents == null) {
+        for (int i = 0; i < n; i++)
+          scores[i] = Math.pow(scores[i], this.exponent);
+      }
+    }
+  }
+
+  /**
+   *  OR for the Indri retrieval model.
+   */
+  static final class IndriOr extends QryScorer {
+
+    IndriOr(Qry q, RetrievalModel r, QryScorer[] args) {
+      super(q, r, args);
+    }
+
+    public double getScore(int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].matches(docid))
+          score *= 1 - this.args[i].getScore(docid);
+        else
+          score *= 1 - this.args[i].getDefaultScore(docid);
+      }
+      return 1 - score;
+    }
+
+    public double getDefaultScore(int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++)
+        score *= 1 - this.args[i].getDefaultScore(docid);
+
+      return 1 - score;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      Arrays.fill(scores, 0, n, 1.0);
+      Arrays.fill(matches, 0, n, false);
+
+      for (int j = 0; j < this.args.length; j++) {
+        this.scoreArgBlock(j, docids, n);
+        for (int i = 0; i < n; i++) {
+          scores[i] *= 1 - this.argScores[i];
+          matches[i] |= this.argMatches[i];
+        }
+      }
+
+      for (int i = 0; i < n; i++)
+        scores[i] = 1 - scores[i];
+    }
+  }
+
+  /**
+   *  WSUM for the Indri retrieval model.
+   */
+  static final class IndriWSum extends QryScorer {
+
+    private final double[] weights;		// normalized
+
+    IndriWSum(Qry q, RetrievalModel r, QryScorer[] args, double[] weights) {
+      super(q, r, args);
+      this.weights = weights;
+    }
+
+    public double getScore(int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.args[i].matches(docid))
+          score += this.weights[i] * this.args[i].getScore(docid);
+        else
+          score += this.weights[i] * this.args[i].getDefaultScore(docid);
+      }
+      return score;
+    }
+
+    public double getDefaultScore(int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++)
+        score += this.weights[i] * this.args[i].getDefaultScore(docid);
+
+      return score;
+    }
+
+    public void scoreBlock(int[] docids, int n, double[] scores, boolean[] matches)
+      throws IOException {
+
+      Arrays.fill(scores, 0, n, 0.0);
+      Arrays.fill(matches, 0, n, false);
+
+      for (int j = 0; j < this.args.length; j++) {
+        this.scoreArgBlock(j, docids, n);
+        for (int i = 0; i < n; i++) {
+          scores[i] += this.weights[j] * this.argScores[i];
+          matches[i] |= this.argMatches[i];
+        }
+      }
+    }
+  }
+}
@@ -2,6 +2,7 @@
  *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 /**
  *  The root class of all query operators that use a retrieval model
@@ -32,6 +33,209 @@ public abstract class QrySop extends Qry {
      */
     public abstract double getDefaultScore(RetrievalModel r, int docid) throws IOException;
 
+    /**
+     *  Get an upper bound on the score of any document that the query
+     *  operator matches.  Top-k evaluation uses the bound to skip
+     *  documents that can't be among the top k.  Operators that don't
+     *  know a bound return positive infinity.  It is an error to call
+     *  this method before the object's initialize method is called.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The score upper bound.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     *  Get an upper bound on the default score (see getDefaultScore) of
+     *  any document.  Operators that don't know a bound return positive
+     *  infinity.  It is an error to call this method before the object's
+     *  initialize method is called.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The default score upper bound.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     *  Get an upper bound on the score of any document in the block of
+     *  documents that contains a docid.  The block ends at the docid
+     *  returned by getBlockLastDocid.  Operators without block-max
+     *  metadata treat all documents as one block.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid An internal document id.
+     *  @return The score upper bound of the block.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getBlockMaxScore(RetrievalModel r, int docid) throws IOException {
+        return this.getMaxScore(r);
+    }
+
+    /**
+     *  Get the last docid of the block that the last call to
+     *  getBlockMaxScore bounded.
+     *  @return The last docid of the block.
+     */
+    public int getBlockLastDocid() {
+        return Integer.MAX_VALUE;
+    }
+
+    //  --------------- Block-at-a-time protocol ----------------------
+
+    /*
+     *  Blocks amortize the cost of walking the query tree.  nextBlock
+     *  collects the next matching docids into an array, and a compiled
+     *  scorer (see QryScorer.scoreBlock) scores them in loops over
+     *  arrays.  The SCORE operator copies docids from its argument's
+     *  inverted list.  Operators that combine arguments buffer a block
+     *  of each argument's docids and merge or intersect the buffers, so
+     *  matching doesn't call down the query tree for each document.
+     *  After nextBlock is called, the document iterators of the query
+     *  operator and its arguments aren't valid until the query operator
+     *  is initialized again.
+     */
+
+    //  A block of docids of each argument.  argBlocks[i][argBlockPos[i]]
+    //  through argBlocks[i][argBlockSize[i] - 1] haven't been used yet.
+    private int[][] argBlocks = null;
+    private int[] argBlockPos = null;
+    private int[] argBlockSize = null;
+
+    /**
+     *  Collect the next documents that the query operator matches, and
+     *  advance the document iterator past them.  Operators that don't
+     *  merge blocks of their arguments use the document iterator.
+     *  @param r The retrieval model that determines what is a match.
+     *  @param docids Filled with up to docids.length docids, in order.
+     *  @return The number of docids, or 0 if there are no more matches.
+     */
+    public int nextBlock(RetrievalModel r, int[] docids) {
+        int n = 0;
+
+        while (n < docids.length && this.docIteratorHasMatch(r)) {
+            int docid = this.docIteratorGetMatch();
+            docids[n++] = docid;
+            this.docIteratorAdvancePast(docid);
+        }
+        return n;
+    }
+
+    /**
+     *  nextBlock for query operators that match documents that any
+     *  argument matches.  The blocks of the arguments are merged up to
+     *  the smallest last docid of the arguments' blocks; docids after it
+     *  may still be found in an argument's next block.
+     *  @param r The retrieval model that determines what is a match.
+     *  @param docids Filled with up to docids.length docids, in order.
+     *  @return The number of docids, or 0 if there are no more matches.
+     */
+    protected int nextBlockUnion(RetrievalModel r, int[] docids) {
+        int k = this.args.size();
+        int n = 0;
+
+        while (n < docids.length) {
+            int bound = Integer.MAX_VALUE;
+            boolean any = false;
+
+            for (int i = 0; i < k; i++) {
+                if (this.fillArgBlock(i, r, docids.length)) {
+                    any = true;
+                    bound = Math.min(bound, this.argBlocks[i][this.argBlockSize[i] - 1]);
+                }
+            }
+
+            if (! any)
+                break;
+
+            //  Every docid up to bound is in the arguments' blocks.
+            while (n < docids.length) {
+                int min = Integer.MAX_VALUE;
+
+                for (int i = 0; i < k; i++) {
+                    if (this.argBlockPos[i] < this.argBlockSize[i])
+                        min = Math.min(min, this.argBlocks[i][this.argBlockPos[i]]);
+                }
+
+                if (min > bound)
+                    break;
+
+                docids[n++] = min;
+
+                for (int i = 0; i < k; i++) {
+                    if (this.argBlockPos[i] < this.argBlockSize[i] &&
+                        this.argBlocks[i][this.argBlockPos[i]] == min)
+                        this.argBlockPos[i]++;
+                }
+
+                if (min == bound)
+                    break;
+            }
+        }
+        return n;
+    }
+
+    /**
+     *  nextBlock for query operators that match documents that all
+     *  arguments match.  The blocks of the arguments are intersected.
+     *  @param r The retrieval model that determines what is a match.
+     *  @param docids Filled with up to docids.length docids, in order.
+     *  @return The number of docids, or 0 if there are no more matches.
+     */
+    protected int nextBlockIntersection(RetrievalModel r, int[] docids) {
+        int k = this.args.size();
+        int n = 0;
+
+        nextCandidate:
+        while (n < docids.length) {
+            int candidate = -1;
+
+            for (int i = 0; i < k; i++) {
+                if (! this.fillArgBlock(i, r, docids.length))
+                    return n;			// An argument is exhausted
+                candidate = Math.max(candidate, this.argBlocks[i][this.argBlockPos[i]]);
+            }
+
+            for (int i = 0; i < k; i++) {
+                this.argBlockPos[i] = QryIop.gallop(this.argBlocks[i], this.argBlockPos[i],
+                                                    this.argBlockSize[i], candidate);
+                if (this.argBlockPos[i] == this.argBlockSize[i] ||
+                    this.argBlocks[i][this.argBlockPos[i]] != candidate)
+                    continue nextCandidate;
+            }
+
+            docids[n++] = candidate;
+
+            for (int i = 0; i < k; i++)
+                this.argBlockPos[i]++;
+        }
+        return n;
+    }
+
+    /**
+     *  Get the next block of an argument if its block has been used up.
+     *  @param i The index of the argument.
+     *  @param r The retrieval model that determines what is a match.
+     *  @param capacity The size of a block.
+     *  @return True if the argument's block has docids, false if the
+     *  argument has no more matches.
+     */
+    private boolean fillArgBlock(int i, RetrievalModel r, int capacity) {
+        if (this.argBlocks == null) {
+            this.argBlocks = new int[this.args.size()][capacity];
+            this.argBlockPos = new int[this.args.size()];
+            this.argBlockSize = new int[this.args.size()];
+        }
+
+        if (this.argBlockPos[i] == this.argBlockSize[i]) {
+            this.argBlockSize[i] = ((QrySop) this.args.get(i)).nextBlock(r, this.argBlocks[i]);
+            this.argBlockPos[i] = 0;
+        }
+        return this.argBlockPos[i] < this.argBlockSize[i];
+    }
+
     /**
      *  Initialize the query operator (and its arguments), including any
      *  internal iterators.  If the query operator is of type QryIop, it
@@ -41,8 +245,20 @@ public abstract class QrySop extends Qry {
      *  @throws IOException Error accessing the Lucene index.
      */
   public void initialize(RetrievalModel r) throws IOException {
+      this.docIteratorClearHeap();
+      this.argBlocks = null;
       for (Qry q_i: this.args) {
           q_i.initialize(r);
       }
   }
+
+  /**
+   *  Discard the argument blocks too.
+   */
+  public void reset() {
+      this.argBlocks = null;
+      this.argBlockPos = null;
+      this.argBlockSize = null;
+      super.reset();
+  }
 }
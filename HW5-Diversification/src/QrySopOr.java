@@ -130,4 +130,13 @@ public class QrySopOr extends QrySop {
       } else
           return 0.0;
   }
-}
+
+	/**
+	 *  Collect the next documents that any argument matches.
+	 *  @param r The retrieval model that determines what is a match.
+	 *  @param docids Filled with up to docids.length docids, in order.
+	 *  @return The number of docids, or 0 if there are no more matches.
+	 */
+	public int nextBlock(RetrievalModel r, int[] docids) {
+		return this.nextBlockUnion(r, docids);
+	}}
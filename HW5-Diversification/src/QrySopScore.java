@@ -14,6 +14,24 @@ public class QrySopScore extends QrySop{
      *  Document-independent values that should be determined just once.
      *  Some retrieval models have these, some don't.
      */
+
+    //  The ordinal of the argument's field, or -1 if it isn't indexed.
+    private int fieldOrdinal = -1;
+
+    //  Indri:  1 - lambda, mu, mu * p, lambda * p, and (1 - lambda) * mu * p,
+    //  where p is the MLE of Prob(term in the collection).
+    private double indriOneMinusLambda, indriMu, indriMuP, indriLambdaP, indriDefaultNumerator;
+
+    //  BM25:  the RSJ (idf) weight, k1, b, 1 - b, and the average field length.
+    private double bm25Idf, bm25K1, bm25B, bm25OneMinusB, bm25AvgDocLen;
+
+    //  Block-max metadata of the argument (null if none), whether it
+    //  was requested yet, the block of the last getBlockMaxScore call,
+    //  and its score upper bound.
+    private BlockMaxIndex.Blocks blocks = null;
+    private boolean blocksRequested = false;
+    private int blockIndex = 0;
+    private double blockMaxScore = Double.NaN;
   
   /**
    *  Indicates whether the query has a match.
@@ -56,26 +74,169 @@ public class QrySopScore extends QrySop{
     public double getDefaultScore(RetrievalModel r, int docid) throws IOException{
         if(r instanceof RetrievalModelIndri){
 
-            // Cast model type into Indri
-            RetrievalModelIndri Indri = (RetrievalModelIndri) r;
+            return this.defaultScoreIndri(this.getFieldLength(docid));
+        }
+        else
+            return getScore(r);
+    }
 
-            // fetch parameters of Indri
-            double mu = Indri.getParam("mu");
-            double lambda = Indri.getParam("lambda");
+    /**
+     *  Get an upper bound on the score of any document that the
+     *  argument matches.  For BM25 and Indri the score grows with tf and
+     *  shrinks with the field length, so the bound is the score of the
+     *  largest tf in the shortest field.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The score upper bound.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getMaxScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelBM25)
+            return this.getMaxScoreBM25(this.getArg(0).getMaxTf(), this.getArg(0).getMinFieldLength());
+        else if (r instanceof RetrievalModelIndri)
+            return this.getMaxScoreIndri(this.getArg(0).getMaxTf(), this.getArg(0).getMinFieldLength());
+        else
+            return super.getMaxScore(r);
+    }
 
-            String field = this.getArg(0).getField();
-            double lenCorpus = Idx.getSumOfFieldLengths(field);
-            double lenDoc = Idx.getFieldLength(field, docid);
-            double ctf = this.getArg(0).getCtf();
+    /**
+     *  Get an upper bound on the default score of any document.  The
+     *  Indri default score shrinks with the field length, so the bound
+     *  is the score of a document without the field.  BM25 gives
+     *  documents that don't match a score of 0.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The default score upper bound.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getMaxDefaultScore(RetrievalModel r) throws IOException {
+        if (r instanceof RetrievalModelBM25)
+            return 0.0;
+        else if (r instanceof RetrievalModelIndri)
+            return this.indriDefaultNumerator / this.indriMu + this.indriLambdaP;
+        else
+            return super.getMaxDefaultScore(r);
+    }
 
-            // MLE of Prob(term in the collection)
-            double p = ctf / lenCorpus;
+    /**
+     *  Get an upper bound on the score of any document in the argument's
+     *  block that contains a docid.  Documents after the argument's last
+     *  block don't match it, so their bound is the default score bound.
+     *  The blocks are requested on the first call, because computing
+     *  them scans the inverted list.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid An internal document id.
+     *  @return The score upper bound of the block.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getBlockMaxScore(RetrievalModel r, int docid) throws IOException {
+        if (! this.blocksRequested) {
+            this.blocksRequested = true;
+            if (r instanceof RetrievalModelBM25 || r instanceof RetrievalModelIndri)
+                this.blocks = this.getArg(0).getBlocks();
+        }
+
+        if (this.blocks == null)
+            return super.getBlockMaxScore(r, docid);
 
-            double score = (1 - lambda) * mu * p / (lenDoc + mu) + lambda * p;
-            return score;
+        int b = this.blocks.findBlock(docid, this.blockIndex);
+
+        if (b != this.blockIndex || Double.isNaN(this.blockMaxScore)) {
+            this.blockIndex = b;
+
+            if (b >= this.blocks.size())
+                this.blockMaxScore = this.getMaxDefaultScore(r);
+            else if (r instanceof RetrievalModelBM25)
+                this.blockMaxScore = this.getMaxScoreBM25(this.blocks.maxTfs[b], this.blocks.minFieldLengths[b]);
+            else
+                this.blockMaxScore = this.getMaxScoreIndri(this.blocks.maxTfs[b], this.blocks.minFieldLengths[b]);
         }
+        return this.blockMaxScore;
+    }
+
+    /**
+     *  Get the last docid of the block that the last call to
+     *  getBlockMaxScore bounded.
+     *  @return The last docid of the block.
+     */
+    public int getBlockLastDocid() {
+        if (this.blocks == null || this.blockIndex >= this.blocks.size())
+            return super.getBlockLastDocid();
+        return this.blocks.lastDocids[this.blockIndex];
+    }
+
+    /**
+     *  Collect the next documents that the argument matches.  They are
+     *  copied from the argument's inverted list if it has one.
+     *  @param r The retrieval model that determines what is a match.
+     *  @param docids Filled with up to docids.length docids, in order.
+     *  @return The number of docids, or 0 if there are no more matches.
+     */
+    public int nextBlock(RetrievalModel r, int[] docids) {
+        if (this.getArg(0).getInvertedList() != null)
+            return this.getArg(0).docIteratorNextBlock(docids);
         else
-            return getScore(r);
+            return super.nextBlock(r, docids);
+    }
+
+    /**
+     *  Get the BM25 score of a document with the largest tf and the
+     *  shortest field of a set of documents.  The tf weight grows with
+     *  tf and shrinks with the field length, so this bounds the score of
+     *  every document in the set.
+     *  @param maxTf The largest tf.
+     *  @param minFieldLength The shortest field length.
+     *  @return The score upper bound.
+     */
+    private double getMaxScoreBM25(double maxTf, double minFieldLength) {
+        return this.scoreBM25(maxTf, minFieldLength);
+    }
+
+    /**
+     *  Get the Indri score of a document with the largest tf and the
+     *  shortest field of a set of documents, which bounds the score of
+     *  every document in the set that matches the argument.
+     *  @param maxTf The largest tf.
+     *  @param minFieldLength The shortest field length.
+     *  @return The score upper bound.
+     */
+    private double getMaxScoreIndri(double maxTf, double minFieldLength) {
+        return this.scoreIndri(maxTf, minFieldLength);
+    }
+
+    /**
+     *  The BM25 score of a document.  This is the only copy of the
+     *  formula; compiled scorers (see QryScorer) use it too.  It is an
+     *  error to call this method before the object's initialize method
+     *  is called with a BM25 retrieval model.
+     *  @param tf The term frequency.
+     *  @param docLen The length of the argument's field in the document.
+     *  @return The document score.
+     */
+    double scoreBM25(double tf, double docLen) {
+        double tfWeight = tf / (tf + this.bm25K1 * (this.bm25OneMinusB + this.bm25B * docLen / this.bm25AvgDocLen));
+        return this.bm25Idf * tfWeight;
+    }
+
+    /**
+     *  The Indri score of a document that the argument matches.  This
+     *  is the only copy of the formula; compiled scorers (see QryScorer)
+     *  use it too.  It is an error to call this method before the
+     *  object's initialize method is called with an Indri retrieval model.
+     *  @param tf The term frequency.
+     *  @param lenDoc The length of the argument's field in the document.
+     *  @return The document score.
+     */
+    double scoreIndri(double tf, double lenDoc) {
+        return this.indriOneMinusLambda * (tf + this.indriMuP) / (lenDoc + this.indriMu) + this.indriLambdaP;
+    }
+
+    /**
+     *  The Indri default score of a document that the argument doesn't
+     *  match (see scoreIndri).
+     *  @param lenDoc The length of the argument's field in the document.
+     *  @return The default score.
+     */
+    double defaultScoreIndri(double lenDoc) {
+        return this.indriDefaultNumerator / (lenDoc + this.indriMu) + this.indriLambdaP;
     }
 
     /**
@@ -86,27 +247,12 @@ public class QrySopScore extends QrySop{
      */
     private double getScoreIndri(RetrievalModel r) throws IOException{
 
-        // Cast model type into Indri
-        RetrievalModelIndri Indri = (RetrievalModelIndri) r;
-
-        // fetch parameters of Indri
-        double mu = Indri.getParam("mu");
-        double lambda = Indri.getParam("lambda");
-
-        String field = this.getArg(0).getField();
         int docid = this.getArg(0).docIteratorGetMatch();
 
-        double lenCorpus = Idx.getSumOfFieldLengths(field);
-        double lenDoc = Idx.getFieldLength(field, docid);
-        double tf = this.getArg(0).docIteratorGetMatchPosting().tf;
-        double ctf = this.getArg(0).getCtf();
+        double lenDoc = this.getFieldLength(docid);
+        double tf = this.getArg(0).docIteratorGetMatchTf();
 
-        // MLE of Prob(term in the collection)
-        double p = ctf / lenCorpus;
-
-        // compute p here to preserve floating point precision: no use
-        double score = (1 - lambda) * (tf + mu * p) / (lenDoc + mu) + lambda * p;
-        return score;
+        return this.scoreIndri(tf, lenDoc);
     }
 
     /**
@@ -117,35 +263,14 @@ public class QrySopScore extends QrySop{
      */
     public double getScoreBM25(RetrievalModel r) throws IOException{
         if(this.docIteratorHasMatchCache()){
-            // Cast model type into BM25
-            RetrievalModelBM25 bm25 = (RetrievalModelBM25)r;
 
             int docid = this.getArg(0).docIteratorGetMatch();
-            String field = this.getArg(0).getField();
-
-        /*
-         * Compute the RSJ (idf) weight of Okapi BMxx model
-         */
-            double df = this.getArg(0).getDf();
-            // number of documents in the corpus
-            // Bug: N in IDF is different from N_field in avg_docLen
-            double N = Idx.getNumDocs();
-            // restrict RSJ weight to be non-negative
-            double idfWeight = Math.max(0.0, Math.log((N - df + 0.5) / (df + 0.5)));
-
-        /*
-         * Compute the tf weight of Okapi BMxx model
-         */
-            double tf = this.getArg(0).docIteratorGetMatchPosting().tf;
-            double k1 = bm25.getParam("k1");
-            double b = bm25.getParam("b");
-            double docLen = Idx.getFieldLength(field, docid);
-            double N_field = Idx.getDocCount(field);      // number of documents in the field
-            double avg_docLen = Idx.getSumOfFieldLengths(field) / N_field;
-            double tfWeight = tf / (tf + k1 * (1.0 - b + b * docLen / avg_docLen));
+
+            double tf = this.getArg(0).docIteratorGetMatchTf();
+            double docLen = this.getFieldLength(docid);
 
             // Final BM25 score for this term in a specific doc
-            return idfWeight * tfWeight;  // bug: userWeight is computed in QrySopSum
+            return this.scoreBM25(tf, docLen);  // bug: userWeight is computed in QrySopSum
         }
         else return 0.0;
     }
@@ -160,7 +285,7 @@ public class QrySopScore extends QrySop{
 	  if(this.docIteratorHasMatchCache()){
 	  
 		  // return the term frequency as the score 
-		  return this.getArg(0).docIteratorGetMatchPosting().tf;
+		  return this.getArg(0).docIteratorGetMatchTf();
 	  }
 	  else return 0.0;
   }
@@ -189,6 +314,75 @@ public class QrySopScore extends QrySop{
   public void initialize(RetrievalModel r) throws IOException{
 	  Qry q = this.args.get(0);
 	  q.initialize(r);
+
+	  String field = this.getArg(0).getField();
+	  this.fieldOrdinal = Idx.getFieldOrdinal(field);
+
+	  //  Corpus statistics don't change during the query, so compute
+	  //  them once instead of once per document.
+	  if (r instanceof RetrievalModelIndri) {
+		  RetrievalModelIndri Indri = (RetrievalModelIndri) r;
+		  double mu = Indri.getParam("mu");
+		  double lambda = Indri.getParam("lambda");
+		  double lenCorpus = Idx.getSumOfFieldLengths(field);
+		  double ctf = this.getArg(0).getCtf();
+
+		  // MLE of Prob(term in the collection)
+		  double p = ctf / lenCorpus;
+
+		  this.indriOneMinusLambda = 1 - lambda;
+		  this.indriMu = mu;
+		  this.indriMuP = mu * p;
+		  this.indriLambdaP = lambda * p;
+		  this.indriDefaultNumerator = (1 - lambda) * mu * p;
+	  } else if (r instanceof RetrievalModelBM25) {
+		  RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+
+		  /*
+		   * Compute the RSJ (idf) weight of Okapi BMxx model
+		   */
+		  double df = this.getArg(0).getDf();
+		  // number of documents in the corpus
+		  // Bug: N in IDF is different from N_field in avg_docLen
+		  double N = Idx.getNumDocs();
+		  // restrict RSJ weight to be non-negative
+		  this.bm25Idf = Math.max(0.0, Math.log((N - df + 0.5) / (df + 0.5)));
+
+		  double b = bm25.getParam("b");
+		  double N_field = Idx.getDocCount(field);      // number of documents in the field
+		  this.bm25K1 = bm25.getParam("k1");
+		  this.bm25B = b;
+		  this.bm25OneMinusB = 1.0 - b;
+		  this.bm25AvgDocLen = Idx.getSumOfFieldLengths(field) / N_field;
+	  }
+
+	  this.blocks = null;
+	  this.blocksRequested = false;
+	  this.blockIndex = 0;
+	  this.blockMaxScore = Double.NaN;
   }
 
+  /**
+   *  Discard the block-max metadata too.
+   */
+  public void reset() {
+	  this.blocks = null;
+	  this.blocksRequested = false;
+	  super.reset();
+  }
+
+    /**
+     *  Get the length of the argument's field in a document, using the
+     *  field ordinal resolved by initialize.
+     *  @param docid The internal document id.
+     *  @return The length of the field.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    double getFieldLength(int docid) throws IOException {
+        if (this.fieldOrdinal >= 0)
+            return Idx.getFieldLength(this.fieldOrdinal, docid);
+        else
+            return Idx.getFieldLength(this.getArg(0).getField(), docid);
+    }
+
 }
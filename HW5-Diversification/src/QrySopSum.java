@@ -88,6 +88,16 @@ public class QrySopSum extends QrySop {
       else return 0.0;
   }
 
+  /**
+   *  Collect the next documents that any argument matches.
+   *  @param r The retrieval model that determines what is a match.
+   *  @param docids Filled with up to docids.length docids, in order.
+   *  @return The number of docids, or 0 if there are no more matches.
+   */
+  public int nextBlock(RetrievalModel r, int[] docids) {
+      return this.nextBlockUnion(r, docids);
+  }
+
 //  /**
 //   *  getScore for the UnrankedBoolean retrieval model.
 //   *  @param r The retrieval model that determines how scores are calculated.
@@ -91,9 +91,21 @@ public class QrySopWAnd extends QrySop {
      *  @throws IOException Error accessing the Lucene index
      */
     private double getScoreIndri(RetrievalModel r) throws IOException{
+        return this.getScoreIndri(r, this.docIteratorGetMatch());
+    }
+
+    /**
+     *  getScore for the Indri retrieval model, for a document that the
+     *  arguments have been advanced to.  Top-k evaluation (see
+     *  QryMaxScore) chooses the documents to score itself.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docid The document id.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getScoreIndri(RetrievalModel r, int docid) throws IOException{
         initializeWeights();
         double score = 1.0;                      // Initialize the score
-        int docid = this.docIteratorGetMatch();  // Current document id
 
       /* Return the multiplication of scores of all query arguments.
        * Note that AND in Indri is different from AND in Boolean, it uses
@@ -113,6 +125,18 @@ public class QrySopWAnd extends QrySop {
         return score;
     }
 
+    /**
+     *  Collect the next documents that any argument matches.
+     *  @param r The retrieval model that determines what is a match.
+     *  @param docids Filled with up to docids.length docids, in order.
+     *  @return The number of docids, or 0 if there are no more matches.
+     */
+    public int nextBlock(RetrievalModel r, int[] docids) {
+        if (r instanceof RetrievalModelIndri)
+            return this.nextBlockUnion(r, docids);
+        else
+            return super.nextBlock(r, docids);
+    }
 
 //    /**
 //   *  getScore for the UnrankedBoolean retrieval model.
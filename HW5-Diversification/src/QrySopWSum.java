@@ -111,6 +111,18 @@ public class QrySopWSum extends QrySop {
         return score;
     }
 
+    /**
+     *  Collect the next documents that any argument matches.
+     *  @param r The retrieval model that determines what is a match.
+     *  @param docids Filled with up to docids.length docids, in order.
+     *  @return The number of docids, or 0 if there are no more matches.
+     */
+    public int nextBlock(RetrievalModel r, int[] docids) {
+        if (r instanceof RetrievalModelIndri)
+            return this.nextBlockUnion(r, docids);
+        else
+            return super.nextBlock(r, docids);
+    }
 
 //    /**
 //   *  getScore for the UnrankedBoolean retrieval model.
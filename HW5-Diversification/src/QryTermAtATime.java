@@ -0,0 +1,422 @@
+/**
+ *  Copyright (c) 2017, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Term-at-a-time query evaluation for flat sum-like queries:  a BM25
+ *  #SUM, an Indri #WSUM or #OR, or a Boolean #OR whose arguments are
+ *  all SCORE operators.
+ *  <p>
+ *  Document-at-a-time evaluation visits every argument of the query
+ *  operator for every document that matches one of them.  Term-at-a-time
+ *  evaluation reads each argument's postings once, from start to end,
+ *  and adds each posting's score into an accumulator array indexed by
+ *  internal docid.
+ *  </p><p>
+ *  The Indri operators also give a default score to each document that
+ *  an argument doesn't match, so the documents to score are only known
+ *  after every argument has been read.  They are evaluated in two
+ *  passes:  the first pass reads each argument's postings into a buffer
+ *  and marks the documents that match, and the second pass combines
+ *  the buffered and default scores of the marked documents.
+ *  </p><p>
+ *  The arguments are combined in argument order, with the query
+ *  operator's arithmetic, so the scores are the same as with
+ *  document-at-a-time evaluation.
+ *  </p><p>
+ *  Accumulators are arrays indexed by docid when the arguments have
+ *  many postings compared with the number of documents in the index.
+ *  Otherwise they are a hash table of docids that is sized by the
+ *  number of postings, so short queries don't allocate or scan arrays
+ *  as large as the index.
+ *  </p><p>
+ *  An optional accumulator limit (Moffat and Zobel, 1996) bounds the
+ *  number of documents that are scored.  The arguments are then read
+ *  in order of increasing df.  When the limit is reached, the
+ *  <i>quit</i> strategy stops reading postings, and the
+ *  <i>continue</i> strategy reads the remaining postings but only for
+ *  documents that already have accumulators.  Results are approximate
+ *  when the limit is reached.
+ *  </p>
+ */
+public class QryTermAtATime {
+
+  //  The maximum number of accumulators, or 0 if there is no limit, and
+  //  whether reaching it stops evaluation (quit) or only the creation
+  //  of new accumulators (continue).
+  private static int accumulatorLimit = 0;
+  private static boolean quit = false;
+
+  /**
+   *  Limit the number of accumulators.
+   *  @param limit The maximum number of accumulators, or 0 for no limit.
+   *  @param quitAtLimit True to stop evaluation at the limit (quit),
+   *  false to keep updating the existing accumulators (continue).
+   */
+  public static void setAccumulatorLimit(int limit, boolean quitAtLimit) {
+    accumulatorLimit = limit;
+    quit = quitAtLimit;
+  }
+
+  /**
+   *  Indicates whether a query can be evaluated term-at-a-time.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if the query can be evaluated term-at-a-time.
+   */
+  public static boolean supports(Qry q, RetrievalModel r) {
+    if (q.args.size() == 0)
+      return false;
+
+    boolean sumLike;
+
+    if (r instanceof RetrievalModelBM25)
+      sumLike = (q instanceof QrySopSum);
+    else if (r instanceof RetrievalModelIndri)
+      sumLike = (q instanceof QrySopWSum) || (q instanceof QrySopOr);
+    else if ((r instanceof RetrievalModelRankedBoolean) ||
+             (r instanceof RetrievalModelUnrankedBoolean))
+      sumLike = (q instanceof QrySopOr);
+    else
+      sumLike = false;
+
+    if (! sumLike)
+      return false;
+
+    //  The query must be flat.
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   *  Evaluate a query and return its top k documents.
+   *  @param q The query.  It must be supported (see supports).
+   *  @param r The retrieval model.
+   *  @param k The maximum number of documents to return.
+   *  @return Search results, in no particular order until sorted.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public static ScoreList evaluate(QrySop q, RetrievalModel r, int k) throws IOException {
+
+    q.initialize(r);
+
+    //  Each posting needs at most one accumulator.
+    long postings = 0;
+
+    for (Qry q_i : q.args)
+      postings += q_i.getArg(0).getDf();
+
+    if (accumulatorLimit > 0)
+      postings = Math.min(postings, accumulatorLimit);
+
+    Accumulators accumulators = new Accumulators(postings, Idx.INDEXREADER.maxDoc());
+
+    if (r instanceof RetrievalModelIndri)
+      evaluateIndri(q, r, accumulators);
+    else
+      evaluateSum(q, r, accumulators);
+
+    ScoreList results = new ScoreList(k);
+
+    for (int i = 0; i < accumulators.size; i++) {
+      int slot = accumulators.slots[i];
+      results.add(accumulators.getDocid(slot), accumulators.scores[slot]);
+    }
+    return results;
+  }
+
+  /**
+   *  Evaluate a BM25 #SUM or Boolean #OR in one pass.  A document that
+   *  an argument doesn't match gets nothing from the argument.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param accumulators Document scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private static void evaluateSum(QrySop q, RetrievalModel r,
+                                  Accumulators accumulators) throws IOException {
+
+    boolean sum = (r instanceof RetrievalModelBM25);
+    boolean unranked = (r instanceof RetrievalModelUnrankedBoolean);
+    double[] scores = accumulators.scores;
+
+    for (int i : getArgOrder(q)) {
+      QrySop q_i = (QrySop) q.args.get(i);
+
+      while (q_i.docIteratorHasMatch(r)) {
+        int docid = q_i.docIteratorGetMatch();
+        int slot = accumulators.find(docid);
+
+        if (slot < 0) {
+          if (accumulatorLimit > 0 && accumulators.size >= accumulatorLimit) {
+            if (quit)
+              return;
+            q_i.docIteratorAdvancePast(docid);
+            continue;
+          }
+          slot = accumulators.add(docid);
+        }
+
+        if (sum)
+          scores[slot] += q_i.getScore(r);
+        else if (unranked)
+          scores[slot] = 1.0;
+        else
+          scores[slot] = Math.max(scores[slot], q_i.getScore(r));
+
+        q_i.docIteratorAdvancePast(docid);
+      }
+    }
+  }
+
+  /**
+   *  Evaluate an Indri #WSUM or #OR in two passes.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param accumulators Document scores.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private static void evaluateIndri(QrySop q, RetrievalModel r,
+                                    Accumulators accumulators) throws IOException {
+
+    int n = q.args.size();
+    int[][] argDocids = new int[n][];
+    double[][] argScores = new double[n][];
+    int[] argSizes = new int[n];
+    boolean full = false;
+
+    //  Pass 1:  buffer each argument's postings and mark the documents
+    //  that match.
+    for (int i : getArgOrder(q)) {
+      QrySop q_i = (QrySop) q.args.get(i);
+      int capacity = Math.max(1, q_i.getArg(0).getDf());
+      int[] docids = new int[capacity];
+      double[] scores = new double[capacity];
+      int size = 0;
+
+      while (! (full && quit) && q_i.docIteratorHasMatch(r)) {
+        int docid = q_i.docIteratorGetMatch();
+
+        if (accumulators.find(docid) < 0) {
+          if (accumulatorLimit > 0 && accumulators.size >= accumulatorLimit) {
+            full = true;
+            q_i.docIteratorAdvancePast(docid);
+            continue;
+          }
+          accumulators.add(docid);
+        }
+
+        if (size == docids.length) {
+          docids = Arrays.copyOf(docids, 2 * size);
+          scores = Arrays.copyOf(scores, 2 * size);
+        }
+        docids[size] = docid;
+        scores[size] = q_i.getScore(r);
+        size++;
+
+        q_i.docIteratorAdvancePast(docid);
+      }
+
+      argDocids[i] = docids;
+      argScores[i] = scores;
+      argSizes[i] = size;
+    }
+
+    //  The candidates, in docid order, and their accumulators.
+    int numCandidates = accumulators.size;
+    int[] candidates = new int[numCandidates];
+    int[] slots = new int[numCandidates];
+
+    for (int c = 0; c < numCandidates; c++)
+      candidates[c] = accumulators.getDocid(accumulators.slots[c]);
+
+    Arrays.sort(candidates);
+
+    for (int c = 0; c < numCandidates; c++)
+      slots[c] = accumulators.find(candidates[c]);
+
+    //  Pass 2:  combine the arguments in argument order.
+    boolean wsum = (q instanceof QrySopWSum);
+    double[] weights = wsum ? getWeights((QrySopWSum) q) : null;
+    double[] acc = accumulators.scores;
+
+    for (int slot : slots)
+      acc[slot] = wsum ? 0.0 : 1.0;
+
+    for (int i = 0; i < n; i++) {
+      QrySop q_i = (QrySop) q.args.get(i);
+      int[] docids = argDocids[i];
+      double[] scores = argScores[i];
+      int p = 0;
+
+      for (int c = 0; c < numCandidates; c++) {
+        int docid = candidates[c];
+
+        while (p < argSizes[i] && docids[p] < docid)
+          p++;
+
+        double score = (p < argSizes[i] && docids[p] == docid) ?
+          scores[p] : q_i.getDefaultScore(r, docid);
+
+        if (wsum)
+          acc[slots[c]] += weights[i] * score;
+        else
+          acc[slots[c]] *= 1 - score;
+      }
+    }
+
+    if (! wsum) {
+      for (int slot : slots)
+        acc[slot] = 1 - acc[slot];
+    }
+  }
+
+  /**
+   *  Get the order in which to read the arguments' postings:  argument
+   *  order, or increasing df if the number of accumulators is limited.
+   *  @param q The query.
+   *  @return Argument indexes.
+   */
+  private static Integer[] getArgOrder(final QrySop q) {
+    int n = q.args.size();
+    Integer[] order = new Integer[n];
+
+    for (int i = 0; i < n; i++)
+      order[i] = i;
+
+    if (accumulatorLimit > 0) {
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer i, Integer j) {
+          return Integer.compare(q.args.get(i).getArg(0).getDf(),
+                                 q.args.get(j).getArg(0).getDf());
+        }
+      });
+    }
+    return order;
+  }
+
+  /**
+   *  Get the normalized weights of a #WSUM, as the operator computes them.
+   *  @param q The query.
+   *  @return The weight of each argument.
+   */
+  private static double[] getWeights(QrySopWSum q) {
+    int n = q.args.size();
+    double[] weights = new double[n];
+    double totalWeight = 0.0;
+
+    for (int i = 0; i < n; i++)
+      totalWeight += q.weights.get(i);
+
+    for (int i = 0; i < n; i++)
+      weights[i] = q.weights.get(i) / totalWeight;
+    return weights;
+  }
+
+  /**
+   *  Document accumulators.  Each accumulator has a slot in the scores
+   *  array.  Dense accumulators use the docid as the slot.  Sparse
+   *  accumulators are an open-addressing hash table of docids, which
+   *  is at most half full.
+   */
+  private static final class Accumulators {
+
+    //  The docid in each slot, or -1 if the slot is empty; null if the
+    //  accumulators are dense.
+    final int[] docids;
+    final boolean[] used;
+    final double[] scores;
+    final int mask;
+
+    //  The slots that are used, in the order that they were added.
+    int[] slots = new int[16];
+    int size = 0;
+
+    /**
+     *  @param postings The largest number of accumulators that are needed.
+     *  @param maxDoc The number of docids in the index.
+     */
+    Accumulators(long postings, int maxDoc) {
+      long capacity = Long.highestOneBit(Math.max(1, 2 * postings - 1)) << 1;
+
+      if (capacity >= maxDoc) {
+        this.docids = null;
+        this.used = new boolean[maxDoc];
+        this.scores = new double[maxDoc];
+        this.mask = 0;
+      }
+      else {
+        this.docids = new int[(int) capacity];
+        this.used = null;
+        this.scores = new double[(int) capacity];
+        this.mask = (int) capacity - 1;
+        Arrays.fill(this.docids, -1);
+      }
+    }
+
+    /**
+     *  Find the accumulator of a document.
+     *  @param docid An internal document id.
+     *  @return The slot of the accumulator, or -1 if there isn't one.
+     */
+    int find(int docid) {
+      if (this.docids == null)
+        return this.used[docid] ? docid : -1;
+
+      for (int slot = hash(docid) & this.mask; ; slot = (slot + 1) & this.mask) {
+        if (this.docids[slot] == docid)
+          return slot;
+        if (this.docids[slot] < 0)
+          return -1;
+      }
+    }
+
+    /**
+     *  Add an accumulator for a document that doesn't have one.
+     *  @param docid An internal document id.
+     *  @return The slot of the accumulator.
+     */
+    int add(int docid) {
+      int slot;
+
+      if (this.docids == null) {
+        slot = docid;
+        this.used[slot] = true;
+      }
+      else {
+        slot = hash(docid) & this.mask;
+        while (this.docids[slot] >= 0)
+          slot = (slot + 1) & this.mask;
+        this.docids[slot] = docid;
+      }
+
+      if (this.size == this.slots.length)
+        this.slots = Arrays.copyOf(this.slots, 2 * this.size);
+      this.slots[this.size++] = slot;
+      return slot;
+    }
+
+    /**
+     *  Get the document of an accumulator.
+     *  @param slot The slot of the accumulator.
+     *  @return The internal document id.
+     */
+    int getDocid(int slot) {
+      return (this.docids == null) ? slot : this.docids[slot];
+    }
+
+    /**
+     *  Spread consecutive docids across the hash table.
+     *  @param docid An internal document id.
+     *  @return The hash code.
+     */
+    private static int hash(int docid) {
+      return docid * 0x9E3779B9;
+    }
+  }
+}
@@ -672,11 +672,11 @@ public class RetrievalModelLeToR extends RetrievalModel {
 	   	 */
             for(int i = 0; i < result.size() && i < 100; i++) {
                 System.out.println(String.format("%s %s %s %s haomingc_HW4", prefix,
-                        Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i)));
+                        result.getExternalDocid(i), i + 1, result.getDocidScore(i)));
 
                 // Write the results to the file in trec_eval format
                 writer.println(String.format("%s %s %s %s haomingc_HW4", prefix,
-                        Idx.getExternalDocid(result.getDocid(i)), i + 1, result.getDocidScore(i)));
+                        result.getExternalDocid(i), i + 1, result.getDocidScore(i)));
             }
         }
         writer.close();
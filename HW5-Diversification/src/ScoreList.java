@@ -7,41 +7,149 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Entries are stored in parallel primitive arrays.  A score list
+ *  created with a limit collects only the best entries:  it is kept
+ *  as a min-heap whose root is the worst entry, and a new entry
+ *  replaces the root only if it is better.  Entry positions are only
+ *  meaningful after sort().
+ *  </p><p>
+ *  External document ids are resolved only when they are needed, to
+ *  break a score tie or to print a result, and are remembered after
+ *  that.
+ *  </p>
  */
 public class ScoreList {
 
-  // A utility class to create a <internalDocid, externalDocid, score> object.
+  private static final int INITIAL_CAPACITY = 16;
 
-  private class ScoreListEntry {
-    private int docid;
-    private String externalId;
-    private double score;
+  //  Parallel arrays of internal docids, scores, and external docids
+  //  (null until resolved).
+  private int[] docids;
+  private double[] scores;
+  private String[] externalIds;
+  private int size = 0;
 
-    private ScoreListEntry(int internalDocid, double score) {
-      this.docid = internalDocid;
-      this.score = score;
+  //  The maximum number of entries, or -1 if the list is unbounded.
+  private final int limit;
 
-      try {
-    	  	this.externalId = Idx.getExternalDocid (this.docid);
-      }
-      catch (IOException ex){
-    	  	ex.printStackTrace();
-      }
-    }
+  //  Whether a bounded list is in heap order.  sort() and
+  //  setDocidScore() break the heap order; it is restored by the next
+  //  add().
+  private boolean heapOrder = true;
+
+  /**
+   *  Create an unbounded score list.
+   */
+  public ScoreList() {
+    this.limit = -1;
+    this.allocate (INITIAL_CAPACITY);
   }
 
   /**
-   *  A list of document ids and scores. 
+   *  Create a score list that keeps only the best entries (descending
+   *  score, then ascending external docid).
+   *  @param limit The maximum number of entries to keep.
    */
-  private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  public ScoreList(int limit) {
+    this.limit = Math.max (0, limit);
+    this.allocate (Math.min (this.limit, INITIAL_CAPACITY));
+  }
 
   /**
-   *  Append a document score to a score list.
+   *  Append a document score to a score list.  If the list is bounded
+   *  and full, the entry replaces the worst entry if it is better.
    *  @param docid An internal document id.
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-	  scores.add(new ScoreListEntry(docid, score));
+
+    if (this.limit >= 0 && ! this.heapOrder)
+      this.heapify ();
+
+    if (this.limit < 0 || this.size < this.limit) {
+      this.ensureCapacity (this.size + 1);
+      this.docids[this.size] = docid;
+      this.scores[this.size] = score;
+      this.externalIds[this.size] = null;
+      this.size ++;
+
+      if (this.limit >= 0)
+        this.siftUp (this.size - 1);
+
+      return;
+    }
+
+    if (this.size == 0)
+      return;				// limit == 0
+
+    //  The list is full.  Compare with the worst entry.  The external
+    //  docid is only resolved if the scores tie.
+    String externalId = null;
+
+    if (score < this.scores[0])
+      return;
+
+    if (! (score > this.scores[0])) {
+      externalId = readExternalDocid (docid);
+      int c = externalId.compareTo (this.getExternalDocid (0));
+
+      if (c > 0 || (c == 0 && docid >= this.docids[0]))
+        return;
+    }
+
+    this.docids[0] = docid;
+    this.scores[0] = score;
+    this.externalIds[0] = externalId;
+    this.siftDown (0);
+  }
+
+  /**
+   *  Allocate the entry arrays.
+   *  @param capacity The initial capacity.
+   */
+  private void allocate (int capacity) {
+    this.docids = new int[capacity];
+    this.scores = new double[capacity];
+    this.externalIds = new String[capacity];
+  }
+
+  /**
+   *  Compare two entries.  Entries are ordered by descending score,
+   *  then ascending external docid, then ascending internal docid.
+   *  @param i The index of an entry.
+   *  @param j The index of another entry.
+   *  @return A negative number if entry i is better than entry j, 0
+   *  if they are the same, otherwise a positive number.
+   */
+  private int compare (int i, int j) {
+    if (this.scores[i] > this.scores[j])
+      return -1;
+    else if (this.scores[i] < this.scores[j])
+      return 1;
+
+    int c = this.getExternalDocid (i).compareTo (this.getExternalDocid (j));
+
+    if (c != 0)
+      return c;
+    return Integer.compare (this.docids[i], this.docids[j]);
+  }
+
+  /**
+   *  Grow the entry arrays, if necessary.
+   *  @param capacity The required capacity.
+   */
+  private void ensureCapacity (int capacity) {
+    if (capacity > this.docids.length) {
+      int newCapacity = Math.max (capacity, 2 * this.docids.length);
+
+      if (this.limit >= 0)
+        newCapacity = Math.min (newCapacity, this.limit);
+
+      this.docids = Arrays.copyOf (this.docids, newCapacity);
+      this.scores = Arrays.copyOf (this.scores, newCapacity);
+      this.externalIds = Arrays.copyOf (this.externalIds, newCapacity);
+    }
   }
 
   /**
@@ -50,7 +158,7 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-	  return this.scores.get(n).docid;
+	  return this.docids[n];
   }
 
   /**
@@ -59,7 +167,35 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-	  return this.scores.get(n).score;
+	  return this.scores[n];
+  }
+
+  /**
+   *  Get the external docid of the n'th entry.  The id is read from
+   *  the index the first time that it is requested.
+   *  @param n The index of the requested document.
+   *  @return The external document id, or null if it can't be read.
+   */
+  public String getExternalDocid(int n) {
+    if (this.externalIds[n] == null)
+      this.externalIds[n] = readExternalDocid (this.docids[n]);
+
+    return this.externalIds[n];
+  }
+
+  /**
+   *  Read an external docid from the index.
+   *  @param docid An internal document id.
+   *  @return The external document id, or null if it can't be read.
+   */
+  private static String readExternalDocid (int docid) {
+    try {
+      return Idx.getExternalDocid (docid);
+    }
+    catch (IOException ex){
+      ex.printStackTrace();
+      return null;
+    }
   }
 
   /**
@@ -68,7 +204,25 @@ public class ScoreList {
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
-	  this.scores.get(n).score = score;
+	  this.scores[n] = score;
+	  this.heapOrder = false;
+  }
+
+  /**
+   *  Get the score that a new entry must reach to enter a full
+   *  bounded list.  An entry with exactly this score may still enter
+   *  if its external docid is smaller.
+   *  @return The score of the worst entry if the list is bounded and
+   *  full, otherwise negative infinity.
+   */
+  public double getThreshold() {
+    if (this.limit < 0 || this.size < this.limit || this.size == 0)
+      return Double.NEGATIVE_INFINITY;
+
+    if (! this.heapOrder)
+      this.heapify ();
+
+    return this.scores[0];
   }
 
   /**
@@ -76,40 +230,143 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
-	  return this.scores.size();
+	  return this.size;
   }
 
-  /*
-   *  Compare two ScoreListEntry objects. 
-   *  Sort by descending score, then external docid.
+  /**
+   *  Sort the list by score and external document id.
    */
-  public class ScoreListComparator implements Comparator<ScoreListEntry> {
+  public void sort () {
+    int[] order = new int[this.size];
+
+    for (int i = 0; i < this.size; i++)
+      order[i] = i;
+
+    this.mergeSort (order, new int[this.size], 0, this.size);
+
+    int[] sortedDocids = new int[this.docids.length];
+    double[] sortedScores = new double[this.scores.length];
+    String[] sortedExternalIds = new String[this.externalIds.length];
 
-    @Override
-    public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-        if(s1.score > s2.score)
-            return -1;
-        else if(s1.score < s2.score)
-            return 1;
-        return s1.externalId.compareTo(s2.externalId);
+    for (int i = 0; i < this.size; i++) {
+      sortedDocids[i] = this.docids[order[i]];
+      sortedScores[i] = this.scores[order[i]];
+      sortedExternalIds[i] = this.externalIds[order[i]];
     }
+
+    this.docids = sortedDocids;
+    this.scores = sortedScores;
+    this.externalIds = sortedExternalIds;
+    this.heapOrder = false;
   }
 
   /**
-   *  Sort the list by score and external document id.
+   *  Sort a range of entry indexes by entry order.
+   *  @param order The entry indexes.
+   *  @param tmp Scratch space at least as long as order.
+   *  @param from The start of the range (inclusive).
+   *  @param to The end of the range (exclusive).
    */
-  public void sort () {
-	  Collections.sort(this.scores, new ScoreListComparator());
+  private void mergeSort (int[] order, int[] tmp, int from, int to) {
+    if (to - from < 2)
+      return;
+
+    int mid = (from + to) >>> 1;
+    this.mergeSort (order, tmp, from, mid);
+    this.mergeSort (order, tmp, mid, to);
+
+    if (this.compare (order[mid - 1], order[mid]) <= 0)
+      return;				// Already in order.
+
+    System.arraycopy (order, from, tmp, from, to - from);
+
+    for (int i = from, j = mid, k = from; k < to; k++) {
+      if (j >= to || (i < mid && this.compare (tmp[i], tmp[j]) <= 0))
+        order[k] = tmp[i++];
+      else
+        order[k] = tmp[j++];
+    }
   }
-  
+
   /**
    * Reduce the score list to the first num results to save on RAM.
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
-    List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(
-    		this.scores.subList(0, Math.min(num, scores.size())));
-    this.scores.clear();
-    this.scores = truncated;
+    this.size = Math.min (Math.max (num, 0), this.size);
+    this.docids = Arrays.copyOf (this.docids, this.size);
+    this.scores = Arrays.copyOf (this.scores, this.size);
+    this.externalIds = Arrays.copyOf (this.externalIds, this.size);
+  }
+
+  //  --------------- Heap maintenance ------------------------------
+
+  /**
+   *  Restore the heap order of a bounded list.  The root of the heap
+   *  is the worst entry.
+   */
+  private void heapify () {
+    for (int i = this.size / 2 - 1; i >= 0; i--)
+      this.siftDown (i);
+
+    this.heapOrder = true;
+  }
+
+  /**
+   *  Move an entry toward the leaves until it is worse than its
+   *  children.
+   *  @param i The index of the entry.
+   */
+  private void siftDown (int i) {
+    while (true) {
+      int worst = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+
+      if (left < this.size && this.compare (left, worst) > 0)
+        worst = left;
+      if (right < this.size && this.compare (right, worst) > 0)
+        worst = right;
+      if (worst == i)
+        return;
+
+      this.swap (i, worst);
+      i = worst;
+    }
+  }
+
+  /**
+   *  Move an entry toward the root until it is better than its parent.
+   *  @param i The index of the entry.
+   */
+  private void siftUp (int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+
+      if (this.compare (i, parent) <= 0)
+        return;
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   *  Swap two entries.
+   *  @param i The index of an entry.
+   *  @param j The index of another entry.
+   */
+  private void swap (int i, int j) {
+    int docid = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = docid;
+
+    double score = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = score;
+
+    String externalId = this.externalIds[i];
+    this.externalIds[i] = this.externalIds[j];
+    this.externalIds[j] = externalId;
   }
 }